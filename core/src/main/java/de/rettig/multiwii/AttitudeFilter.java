@@ -0,0 +1,129 @@
+package de.rettig.multiwii;
+
+/**
+ * Complementary filter estimating roll, pitch and heading from the raw
+ * sensor values, independent of the flight controller's own estimate.
+ *
+ * The gyro rates are integrated for a fast response, and the result is
+ * pulled towards the angles given by the accelerometer and magnetometer
+ * with the time constant set by {@link #setTimeConstant(float)}, which
+ * removes gyro drift and accelerometer noise. Axes follow the decoded
+ * fields: ax and gx belong to roll, ay and gy to pitch, gz to heading.
+ * The magnetometer heading is not tilt compensated. A sample not later
+ * than the previous one leaves the estimate as it is.
+ *
+ * Everything is primitive float math on fields, so an update allocates
+ * nothing. An instance is not thread safe.
+ */
+public class AttitudeFilter {
+
+	/** Raw gyro units per degree per second of the MultiWii firmware. */
+	public static final float DEFAULT_GYRO_SCALE = 3.6f;
+	/** Default time constant in seconds. */
+	public static final float DEFAULT_TIME_CONSTANT = 0.5f;
+
+	// Updates further apart than this restart the estimate
+	private static final float MAX_STEP = 0.5f;
+	private static final float RAD_TO_DEG = (float) (180 / Math.PI);
+
+	private float mGyroScale = DEFAULT_GYRO_SCALE;
+	private float mTimeConstant = DEFAULT_TIME_CONSTANT;
+
+	private boolean mInitialized;
+	private long mLastTime;
+	private float mRoll;
+	private float mPitch;
+	private float mHeading;
+
+	/**
+	 * Set the gyro resolution.
+	 * @param unitsPerDegree  Raw gyro units per degree per second
+	 */
+	public void setGyroScale(float unitsPerDegree) {
+		mGyroScale = unitsPerDegree;
+	}
+
+	/**
+	 * Set how long the gyro is trusted over the absolute sensors.
+	 * @param seconds  Time constant of the filter
+	 */
+	public void setTimeConstant(float seconds) {
+		mTimeConstant = seconds;
+	}
+
+	/**
+	 * Start the estimate over with the next update.
+	 */
+	public void reset() {
+		mInitialized = false;
+	}
+
+	/**
+	 * Update the estimate with the raw values of a decoded state and store
+	 * the result in its fused fields.
+	 * @param copter  The state holding the raw sensor values
+	 * @param nanos  System.nanoTime() of the sample
+	 */
+	public void update(Copter copter, long nanos) {
+		update(copter.ax, copter.ay, copter.az, copter.gx, copter.gy, copter.gz,
+				copter.magX, copter.magY, nanos);
+		copter.fusedRoll = mRoll;
+		copter.fusedPitch = mPitch;
+		copter.fusedHeading = mHeading;
+	}
+
+	/**
+	 * Update the estimate with raw sensor values.
+	 * @param nanos  System.nanoTime() of the sample
+	 */
+	public void update(int ax, int ay, int az, int gx, int gy, int gz, int magX, int magY, long nanos) {
+		float accRoll = (float) Math.atan2(ax, az) * RAD_TO_DEG;
+		float accPitch = (float) Math.atan2(ay, az) * RAD_TO_DEG;
+		float magHeading = (float) Math.atan2(-magY, magX) * RAD_TO_DEG;
+
+		float dt = (nanos - mLastTime) * 1e-9f;
+		if (mInitialized && dt <= 0) return;
+		mLastTime = nanos;
+		if (!mInitialized || dt > MAX_STEP) {
+			mRoll = accRoll;
+			mPitch = accPitch;
+			mHeading = magHeading;
+			mInitialized = true;
+			return;
+		}
+
+		float alpha = mTimeConstant / (mTimeConstant + dt);
+		float scale = dt / mGyroScale;
+		mRoll = alpha * (mRoll + gx * scale) + (1 - alpha) * accRoll;
+		mPitch = alpha * (mPitch + gy * scale) + (1 - alpha) * accPitch;
+		// Blend the heading along the shorter way around the circle
+		float heading = mHeading + gz * scale;
+		heading += (1 - alpha) * wrap(magHeading - heading);
+		mHeading = wrap(heading);
+	}
+
+	/**
+	 * Return the estimated roll in degrees. */
+	public float getRoll() {
+		return mRoll;
+	}
+
+	/**
+	 * Return the estimated pitch in degrees. */
+	public float getPitch() {
+		return mPitch;
+	}
+
+	/**
+	 * Return the estimated heading in degrees, from -180 to 180. */
+	public float getHeading() {
+		return mHeading;
+	}
+
+	// Map an angle into -180..180 degrees
+	private static float wrap(float degrees) {
+		if (degrees > 180) return degrees - 360;
+		if (degrees < -180) return degrees + 360;
+		return degrees;
+	}
+}
@@ -0,0 +1,55 @@
+package de.rettig.multiwii;
+
+import java.util.Random;
+
+/**
+ * Delays between reconnect attempts. The first attempt is made at once,
+ * then the delay doubles from the initial value up to the maximum. Each
+ * delay is jittered to between half and all of its nominal value, so
+ * several devices dropped by the same disturbance do not retry in step.
+ * An instance is not thread safe.
+ */
+public class Backoff {
+
+	private final long mInitial;
+	private final long mMax;
+	private final Random mRandom;
+	private int mAttempts = 0;
+
+	/**
+	 * Constructor.
+	 * @param initialMillis  Nominal delay before the second attempt
+	 * @param maxMillis  Upper bound of the nominal delay
+	 * @param seed  Seed of the jitter
+	 */
+	public Backoff(long initialMillis, long maxMillis, long seed) {
+		mInitial = initialMillis;
+		mMax = maxMillis;
+		mRandom = new Random(seed);
+	}
+
+	/**
+	 * Return the delay before the next attempt and count the attempt.
+	 * @return The delay in ms
+	 */
+	public long next() {
+		int attempt = mAttempts++;
+		if (attempt == 0) return 0;
+		long nominal = mInitial << Math.min(attempt - 1, 30);
+		if (nominal > mMax || nominal <= 0) nominal = mMax;
+		return nominal / 2 + (long) (mRandom.nextDouble() * (nominal - nominal / 2));
+	}
+
+	/**
+	 * Start over after a successful attempt.
+	 */
+	public void reset() {
+		mAttempts = 0;
+	}
+
+	/**
+	 * Return the number of attempts since the last reset. */
+	public int getAttempts() {
+		return mAttempts;
+	}
+}
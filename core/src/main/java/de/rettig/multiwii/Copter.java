@@ -0,0 +1,57 @@
+package de.rettig.multiwii;
+
+public class Copter {
+
+	public int ax;
+	public int angleY;
+	public int angleX;
+	public int ay;
+	public int az;
+	public int gx;
+	public int gy;
+	public int gz;
+	public int magX;
+	public int magY;
+	public int magZ;
+	public int baro;
+	public int head;
+	public int cycleTime;
+	public int i2cErrors;
+	public final int[] motor = new int[8];
+	public final int[] rc = new int[8];
+	// Attitude estimated on the phone by an AttitudeFilter, in degrees
+	public float fusedRoll;
+	public float fusedPitch;
+	public float fusedHeading;
+	// System.nanoTime() when the request answered by this state was sent, 0 if unknown
+	public long requestTime;
+
+	/**
+	 * Copy all values of another Copter into this one.
+	 * @param other  The Copter to copy from
+	 */
+	public void set(Copter other) {
+		ax = other.ax;
+		angleY = other.angleY;
+		angleX = other.angleX;
+		ay = other.ay;
+		az = other.az;
+		gx = other.gx;
+		gy = other.gy;
+		gz = other.gz;
+		magX = other.magX;
+		magY = other.magY;
+		magZ = other.magZ;
+		baro = other.baro;
+		head = other.head;
+		cycleTime = other.cycleTime;
+		i2cErrors = other.i2cErrors;
+		System.arraycopy(other.motor, 0, motor, 0, motor.length);
+		System.arraycopy(other.rc, 0, rc, 0, rc.length);
+		fusedRoll = other.fusedRoll;
+		fusedPitch = other.fusedPitch;
+		fusedHeading = other.fusedHeading;
+		requestTime = other.requestTime;
+	}
+
+}
@@ -0,0 +1,168 @@
+package de.rettig.multiwii;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * One monitored copter: a connection, its decoder state and its
+ * {@link Copter}. The session polls legacy status frames through a
+ * {@link PollScheduler} and decodes them on the thread running
+ * {@link #run()}, which is the only thread a session needs; writing and
+ * poll timeouts are handled by a {@link SharedWriter} common to all
+ * sessions. The newest state is published to a {@link CopterSnapshot} for
+ * any other thread to read.
+ */
+public class CopterSession implements Runnable, SharedWriter.Link {
+
+	/** Size of the batches written at once. */
+	public static final int WRITE_BATCH_SIZE = 256;
+
+	// Outgoing messages waiting for the writer
+	private static final int WRITE_QUEUE_CAPACITY = 16;
+	private static final int READ_BUFFER_SIZE = 1024;
+
+	private final Transport mTransport;
+	private final SharedWriter mWriter;
+	private final WriteQueue mQueue = new WriteQueue(WRITE_QUEUE_CAPACITY, WRITE_BATCH_SIZE);
+	private final FrameDecoder mDecoder = new FrameDecoder();
+	private final Copter mCopter = new Copter();
+	private final CopterSnapshot mSnapshot = new CopterSnapshot();
+	private final RequestTracker mTracker = new RequestTracker();
+	private final LinkStats mStats = new LinkStats(10);
+	private final PollScheduler mPoller;
+	private volatile OutputStream mOut;
+	private volatile boolean mClosed;
+
+	/**
+	 * Constructor.
+	 * @param transport  The unconnected Transport to the copter
+	 * @param writer  The writer shared by all sessions
+	 */
+	public CopterSession(Transport transport, SharedWriter writer) {
+		mTransport = transport;
+		mWriter = writer;
+		mPoller = new PollScheduler(new PollScheduler.Sender() {
+			public void send(byte[] request) {
+				mQueue.offer(request, false);
+			}
+		}, PollScheduler.STATUS_REQUEST, mTracker);
+	}
+
+	/**
+	 * Connect, then read and decode until the connection is lost or
+	 * {@link #close()} is called.
+	 */
+	public void run() {
+		byte[] buffer = new byte[READ_BUFFER_SIZE];
+		try {
+			mTransport.connect();
+			InputStream in = mTransport.getInputStream();
+			mOut = mTransport.getOutputStream();
+			mStats.onConnected();
+			mWriter.add(this);
+			mPoller.start();
+			while (!mClosed) {
+				int bytes = in.read(buffer);
+				if (bytes < 0) break;
+				if (bytes == 0) continue;
+				mStats.add(LinkStats.BYTES_IN, bytes);
+				onData(buffer, bytes);
+			}
+		} catch (IOException e) {
+			// Connection failed or lost, same as closing
+		} finally {
+			close();
+		}
+	}
+
+	private void onData(byte[] buffer, int length) {
+		long discarded = mDecoder.getDiscardedCount();
+		long resyncs = mDecoder.getResyncCount();
+		int frames = mDecoder.decode(buffer, 0, length, mCopter);
+		if (mDecoder.getDiscardedCount() != discarded) {
+			mStats.add(LinkStats.DISCARDED, mDecoder.getDiscardedCount() - discarded);
+		}
+		if (mDecoder.getResyncCount() != resyncs) {
+			mStats.add(LinkStats.RESYNCS, mDecoder.getResyncCount() - resyncs);
+		}
+		if (mDecoder.isPartial()) mStats.add(LinkStats.SHORT_READS, 1);
+		if (frames == 0) return;
+		mStats.add(LinkStats.FRAMES, frames);
+		for (int i = 0; i < frames; i++) {
+			mCopter.requestTime = mPoller.onFrame();
+		}
+		mSnapshot.publish(mCopter);
+	}
+
+	/**
+	 * Stop polling and close the connection.
+	 */
+	public void close() {
+		mClosed = true;
+		mPoller.stop();
+		mWriter.remove(this);
+		try {
+			mTransport.close();
+		} catch (IOException e) {
+			// Closing anyway
+		}
+	}
+
+	/**
+	 * Return true once the session was closed or lost its connection. */
+	public boolean isClosed() {
+		return mClosed;
+	}
+
+	/**
+	 * Return the name of the connection. */
+	public String getName() {
+		return mTransport.getName();
+	}
+
+	/**
+	 * Return the newest decoded state. */
+	public CopterSnapshot getSnapshot() {
+		return mSnapshot;
+	}
+
+	/**
+	 * Return the request timing of this session. */
+	public RequestTracker getRequestTracker() {
+		return mTracker;
+	}
+
+	/**
+	 * Return the link counters of this session. Sample them from one
+	 * thread to get rates. */
+	public LinkStats getLinkStats() {
+		return mStats;
+	}
+
+	/**
+	 * Return the poll scheduler, e.g. to change its window. */
+	public PollScheduler getPoller() {
+		return mPoller;
+	}
+
+	public WriteQueue getWriteQueue() {
+		return mQueue;
+	}
+
+	public OutputStream getOutputStream() {
+		return mOut;
+	}
+
+	public void onWritten(int messages, int bytes, long start, long end) {
+		mStats.add(LinkStats.BYTES_OUT, bytes);
+	}
+
+	public void onWriteFailed(IOException e) {
+		close();
+	}
+
+	public void onTick(long now) {
+		mPoller.onTick();
+	}
+}
@@ -0,0 +1,121 @@
+package de.rettig.multiwii;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Hands the newest decoded {@link Copter} state from the decoder to the UI
+ * without locks.
+ *
+ * The state is kept in a sequence lock: the writer makes the sequence odd,
+ * stores the state and makes it even again, while a reader copies the
+ * state and retries if the sequence was odd or changed meanwhile. Readers
+ * never block the writer and always see a state as a whole, never parts of
+ * two. The values are stored in an atomic array, so a reader that sees a
+ * new value is also guaranteed to see the odd sequence written before it.
+ * States published faster than the UI reads them simply replace each
+ * other, so the newest state always wins and nothing queues up. Nothing is
+ * allocated. There must be only one writer; any number of threads may read.
+ */
+public class CopterSnapshot {
+
+	// Slots of the Copter members in the array
+	private static final int AX = 0, AY = 1, AZ = 2, GX = 3, GY = 4, GZ = 5;
+	private static final int MAG_X = 6, MAG_Y = 7, MAG_Z = 8, BARO = 9, HEAD = 10;
+	private static final int ANGLE_X = 11, ANGLE_Y = 12, CYCLE_TIME = 13, I2C_ERRORS = 14;
+	private static final int FUSED_ROLL = 15, FUSED_PITCH = 16, FUSED_HEADING = 17;
+	private static final int REQUEST_TIME_LOW = 18, REQUEST_TIME_HIGH = 19;
+	private static final int MOTOR = 20, RC = 28, SLOTS = 36;
+
+	// Reads retried before giving the writer a chance to finish
+	private static final int SPINS = 64;
+
+	private final AtomicIntegerArray mState = new AtomicIntegerArray(SLOTS);
+	// Odd while the writer stores a state, only written by the writer
+	private volatile long mSequence = 0;
+
+	/**
+	 * Publish a new state. Must only be called by the single writer.
+	 * @param state  The state to publish, copied into the snapshot
+	 */
+	public void publish(Copter state) {
+		long sequence = mSequence;
+		mSequence = sequence + 1;
+		// Ordered stores cannot become visible before the odd sequence
+		AtomicIntegerArray s = mState;
+		s.lazySet(AX, state.ax);
+		s.lazySet(AY, state.ay);
+		s.lazySet(AZ, state.az);
+		s.lazySet(GX, state.gx);
+		s.lazySet(GY, state.gy);
+		s.lazySet(GZ, state.gz);
+		s.lazySet(MAG_X, state.magX);
+		s.lazySet(MAG_Y, state.magY);
+		s.lazySet(MAG_Z, state.magZ);
+		s.lazySet(BARO, state.baro);
+		s.lazySet(HEAD, state.head);
+		s.lazySet(ANGLE_X, state.angleX);
+		s.lazySet(ANGLE_Y, state.angleY);
+		s.lazySet(CYCLE_TIME, state.cycleTime);
+		s.lazySet(I2C_ERRORS, state.i2cErrors);
+		s.lazySet(FUSED_ROLL, Float.floatToRawIntBits(state.fusedRoll));
+		s.lazySet(FUSED_PITCH, Float.floatToRawIntBits(state.fusedPitch));
+		s.lazySet(FUSED_HEADING, Float.floatToRawIntBits(state.fusedHeading));
+		s.lazySet(REQUEST_TIME_LOW, (int) state.requestTime);
+		s.lazySet(REQUEST_TIME_HIGH, (int) (state.requestTime >>> 32));
+		for (int i = 0; i < 8; i++) {
+			s.lazySet(MOTOR + i, state.motor[i]);
+			s.lazySet(RC + i, state.rc[i]);
+		}
+		mSequence = sequence + 2;
+	}
+
+	/**
+	 * Copy the newest published state. Retries while the writer is storing
+	 * a state, so the copy is always consistent.
+	 * @param dst  The Copter to copy into
+	 * @return The version of the copied state
+	 */
+	public long read(Copter dst) {
+		AtomicIntegerArray s = mState;
+		for (int tries = 1; ; tries++) {
+			long sequence = mSequence;
+			if ((sequence & 1) == 0) {
+				dst.ax = s.get(AX);
+				dst.ay = s.get(AY);
+				dst.az = s.get(AZ);
+				dst.gx = s.get(GX);
+				dst.gy = s.get(GY);
+				dst.gz = s.get(GZ);
+				dst.magX = s.get(MAG_X);
+				dst.magY = s.get(MAG_Y);
+				dst.magZ = s.get(MAG_Z);
+				dst.baro = s.get(BARO);
+				dst.head = s.get(HEAD);
+				dst.angleX = s.get(ANGLE_X);
+				dst.angleY = s.get(ANGLE_Y);
+				dst.cycleTime = s.get(CYCLE_TIME);
+				dst.i2cErrors = s.get(I2C_ERRORS);
+				dst.fusedRoll = Float.intBitsToFloat(s.get(FUSED_ROLL));
+				dst.fusedPitch = Float.intBitsToFloat(s.get(FUSED_PITCH));
+				dst.fusedHeading = Float.intBitsToFloat(s.get(FUSED_HEADING));
+				dst.requestTime = (s.get(REQUEST_TIME_LOW) & 0xFFFFFFFFL)
+						| (long) s.get(REQUEST_TIME_HIGH) << 32;
+				for (int i = 0; i < 8; i++) {
+					dst.motor[i] = s.get(MOTOR + i);
+					dst.rc[i] = s.get(RC + i);
+				}
+				if (mSequence == sequence) return sequence >> 1;
+			}
+			// On a single core the writer may be preempted mid state
+			if (tries % SPINS == 0) Thread.yield();
+		}
+	}
+
+	/**
+	 * Return the version of the newest state. It increases with every
+	 * publish, so a reader can skip {@link #read(Copter)} if nothing changed.
+	 */
+	public long getVersion() {
+		return mSequence >> 1;
+	}
+}
@@ -0,0 +1,216 @@
+package de.rettig.multiwii;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Devices connected to before, with when they were last connected and
+ * seen and how often connecting to them worked. The most recently
+ * connected devices come first, so a returning user finds the copter at
+ * the top of the list without waiting for a Bluetooth inquiry.
+ *
+ * The cache is kept as text, one device per line, so it can be stored
+ * anywhere a String fits. An instance is not thread safe.
+ */
+public class DeviceCache {
+
+	/**
+	 * What is known about one device.
+	 */
+	public static class Entry {
+		private final String mAddress;
+		private String mName;
+		private long mLastSeen;
+		private long mLastConnected;
+		private int mAttempts;
+		private int mSuccesses;
+
+		Entry(String address) {
+			mAddress = address;
+		}
+
+		/**
+		 * Return the hardware address. */
+		public String getAddress() {
+			return mAddress;
+		}
+
+		/**
+		 * Return the last known name, may be empty. */
+		public String getName() {
+			return mName;
+		}
+
+		/**
+		 * Return the time the device was last connected or found, in ms. */
+		public long getLastSeen() {
+			return mLastSeen;
+		}
+
+		/**
+		 * Return the time of the last successful connection in ms, 0 if none. */
+		public long getLastConnected() {
+			return mLastConnected;
+		}
+
+		/**
+		 * Return the number of connection attempts. */
+		public int getAttempts() {
+			return mAttempts;
+		}
+
+		/**
+		 * Return the number of successful connection attempts. */
+		public int getSuccesses() {
+			return mSuccesses;
+		}
+
+		/**
+		 * Return the share of successful attempts from 0 to 1, 0 if there were none. */
+		public float getSuccessRate() {
+			return mAttempts == 0 ? 0 : (float) mSuccesses / mAttempts;
+		}
+	}
+
+	// Most recently connected first, then most recently seen
+	private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+		public int compare(Entry a, Entry b) {
+			if (a.mLastConnected != b.mLastConnected) return a.mLastConnected > b.mLastConnected ? -1 : 1;
+			if (a.mLastSeen != b.mLastSeen) return a.mLastSeen > b.mLastSeen ? -1 : 1;
+			return 0;
+		}
+	};
+
+	private final int mCapacity;
+	private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+
+	/**
+	 * Constructor.
+	 * @param capacity  Number of devices kept; the least recent ones are forgotten
+	 */
+	public DeviceCache(int capacity) {
+		mCapacity = capacity;
+	}
+
+	/**
+	 * Record an attempt to connect to a device.
+	 * @param address  The hardware address
+	 * @param name  The name of the device, or null to keep the known one
+	 * @param connected  true if the connection was made
+	 * @param now  The current time in ms
+	 */
+	public void onConnect(String address, String name, boolean connected, long now) {
+		Entry entry = getOrAdd(address, name, now);
+		entry.mAttempts++;
+		if (connected) {
+			entry.mSuccesses++;
+			entry.mLastConnected = now;
+		}
+		trim();
+	}
+
+	/**
+	 * Record that a known device was found, e.g. by an inquiry. Unknown
+	 * devices are not added.
+	 * @param address  The hardware address
+	 * @param name  The name of the device, or null to keep the known one
+	 * @param now  The current time in ms
+	 */
+	public void onSeen(String address, String name, long now) {
+		if (mEntries.containsKey(address)) getOrAdd(address, name, now);
+	}
+
+	private Entry getOrAdd(String address, String name, long now) {
+		Entry entry = mEntries.get(address);
+		if (entry == null) {
+			entry = new Entry(address);
+			entry.mName = "";
+			mEntries.put(address, entry);
+		}
+		if (name != null) entry.mName = clean(name);
+		entry.mLastSeen = now;
+		return entry;
+	}
+
+	// Forget the least recent devices beyond the capacity
+	private void trim() {
+		if (mEntries.size() <= mCapacity) return;
+		List<Entry> entries = getEntries();
+		for (int i = mCapacity; i < entries.size(); i++) {
+			mEntries.remove(entries.get(i).mAddress);
+		}
+	}
+
+	/**
+	 * Return what is known about a device, or null. */
+	public Entry get(String address) {
+		return mEntries.get(address);
+	}
+
+	/**
+	 * Return all devices, the most recently connected first.
+	 * @return A new list
+	 */
+	public List<Entry> getEntries() {
+		List<Entry> entries = new ArrayList<Entry>(mEntries.values());
+		Collections.sort(entries, ORDER);
+		return entries;
+	}
+
+	/**
+	 * Return the number of devices known. */
+	public int size() {
+		return mEntries.size();
+	}
+
+	/**
+	 * Return the cache as text, to be read back with {@link #decode(String)}.
+	 */
+	public String encode() {
+		StringBuilder sb = new StringBuilder();
+		for (Entry entry : getEntries()) {
+			sb.append(entry.mAddress).append('\t');
+			sb.append(entry.mLastSeen).append('\t');
+			sb.append(entry.mLastConnected).append('\t');
+			sb.append(entry.mAttempts).append('\t');
+			sb.append(entry.mSuccesses).append('\t');
+			sb.append(entry.mName).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Replace the content by text from {@link #encode()}. Malformed lines
+	 * are skipped.
+	 * @param text  The encoded cache, may be null
+	 */
+	public void decode(String text) {
+		mEntries.clear();
+		if (text == null) return;
+		for (String line : text.split("\n")) {
+			String[] fields = line.split("\t", 6);
+			if (fields.length != 6) continue;
+			try {
+				Entry entry = new Entry(fields[0]);
+				entry.mLastSeen = Long.parseLong(fields[1]);
+				entry.mLastConnected = Long.parseLong(fields[2]);
+				entry.mAttempts = Integer.parseInt(fields[3]);
+				entry.mSuccesses = Integer.parseInt(fields[4]);
+				entry.mName = fields[5];
+				mEntries.put(entry.mAddress, entry);
+			} catch (NumberFormatException e) {
+				// Skip the line
+			}
+		}
+		trim();
+	}
+
+	// Names end up in a line of tab separated fields
+	private static String clean(String name) {
+		return name.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+	}
+}
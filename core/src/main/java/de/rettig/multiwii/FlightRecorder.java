@@ -0,0 +1,313 @@
+package de.rettig.multiwii;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records the raw bytes received from the copter into memory mapped segment
+ * files, so a flight can be analyzed or replayed later.
+ *
+ * The reader thread hands each received chunk to {@link #record} which only
+ * copies it into a preallocated slot and never blocks; if the recorder falls
+ * behind, the chunk is dropped and counted. A separate thread moves the
+ * chunks into the mapped segment. A full segment is closed and the next one
+ * mapped, and the oldest segments are deleted beyond the configured number.
+ * Stopping does not wait for the file either: the recorder thread stores
+ * what is left, closes the segment and then tells a {@link Listener}.
+ *
+ * Every segment starts with a header of {@link #HEADER_SIZE} bytes:
+ * <pre>
+ *  0  int   MAGIC
+ *  4  int   VERSION
+ *  8  int   segment index within the session
+ * 12  int   end of the written records
+ * 16  long  wall clock time of the session start in ms
+ * 24  long  number of records in the segment
+ * </pre>
+ * followed by the records, each made of a short payload length, the long
+ * time of reception in ns since the session start and the payload. A length
+ * of zero marks the end. All values are little endian.
+ */
+public class FlightRecorder {
+
+	/**
+	 * Told when a recording has been stopped and its last segment closed.
+	 */
+	public interface Listener {
+		/**
+		 * Called on the recorder thread once everything is stored.
+		 * @param recorder  The stopped recorder, its counts are final
+		 */
+		void onStopped(FlightRecorder recorder);
+	}
+
+	public static final int MAGIC = 0x3152574d; // "MWR1"
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 64;
+	/** Bytes in front of each record's payload. */
+	public static final int RECORD_HEADER = 10;
+	/** Longest payload of a record; longer chunks are split. */
+	public static final int MAX_RECORD_LENGTH = 1024;
+	/** File name extension of the segments. */
+	public static final String EXTENSION = ".mwr";
+
+	// Offsets of the header fields
+	static final int H_MAGIC = 0;
+	static final int H_VERSION = 4;
+	static final int H_SEGMENT = 8;
+	static final int H_END = 12;
+	static final int H_START_TIME = 16;
+	static final int H_RECORDS = 24;
+
+	// Slots handing the chunks from the reader to the recorder thread
+	private static final int SLOTS = 256;
+
+	private final File mDirectory;
+	private final int mSegmentSize;
+	private final int mMaxSegments;
+
+	private final byte[][] mSlotData = new byte[SLOTS][MAX_RECORD_LENGTH];
+	private final int[] mSlotLength = new int[SLOTS];
+	private final long[] mSlotTime = new long[SLOTS];
+	// Next slot to fill, written by the reader thread only
+	private final AtomicLong mTail = new AtomicLong();
+	// Next slot to store, written by the recorder thread only
+	private final AtomicLong mHead = new AtomicLong();
+
+	private final AtomicLong mRecords = new AtomicLong();
+	private final AtomicLong mDropped = new AtomicLong();
+	private final AtomicLong mBytes = new AtomicLong();
+
+	private volatile boolean mRunning;
+	// Set until the recorder thread has closed the last segment
+	private Thread mThread;
+	private Listener mStopListener;
+	private String mSessionName;
+	private long mStartNanos;
+	private long mStartTime;
+
+	// Owned by the recorder thread
+	private RandomAccessFile mFile;
+	private MappedByteBuffer mSegment;
+	private int mSegmentIndex;
+	private long mSegmentRecords;
+
+	/**
+	 * Constructor.
+	 * @param directory  Directory to create the segment files in
+	 * @param segmentSize  Size of each segment file in bytes
+	 * @param maxSegments  Number of segments kept before the oldest is deleted
+	 */
+	public FlightRecorder(File directory, int segmentSize, int maxSegments) {
+		if (segmentSize < HEADER_SIZE + RECORD_HEADER + MAX_RECORD_LENGTH) {
+			throw new IllegalArgumentException("segment too small: " + segmentSize);
+		}
+		mDirectory = directory;
+		mSegmentSize = segmentSize;
+		mMaxSegments = Math.max(1, maxSegments);
+	}
+
+	/**
+	 * Open the first segment of a new session and start recording.
+	 * @throws IOException if the segment file cannot be created
+	 * @throws IllegalStateException if the last recording is still being closed
+	 */
+	public synchronized void start() throws IOException {
+		if (mRunning) return;
+		if (mThread != null) throw new IllegalStateException("still closing " + mSessionName);
+		if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+			throw new IOException("cannot create " + mDirectory);
+		}
+		mStartTime = System.currentTimeMillis();
+		mStartNanos = System.nanoTime();
+		mSessionName = "flight-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date(mStartTime));
+		mSegmentIndex = 0;
+		mHead.set(mTail.get());
+		openSegment();
+
+		mRunning = true;
+		mThread = new Thread("FlightRecorder") {
+			public void run() {
+				drainLoop();
+			}
+		};
+		mThread.start();
+	}
+
+	/**
+	 * Stop recording without waiting for the file. Chunks recorded so far
+	 * are stored and the current segment is closed by the recorder thread.
+	 * @param listener  Told when the segment is closed, may be null
+	 */
+	public synchronized void stop(Listener listener) {
+		if (!mRunning) return;
+		mStopListener = listener;
+		mRunning = false;
+		LockSupport.unpark(mThread);
+	}
+
+	/**
+	 * Return true while recording. */
+	public boolean isRecording() {
+		return mRunning;
+	}
+
+	/**
+	 * Record a received chunk. Only to be called from the single thread that
+	 * reads the link. Never blocks. A chunk longer than a record is split
+	 * into several, and is stored whole or not at all.
+	 * @param data  The received bytes
+	 * @param offset  Index of the first byte
+	 * @param length  Number of bytes
+	 * @return false if the chunk was dropped because the recorder fell behind
+	 */
+	public boolean record(byte[] data, int offset, int length) {
+		if (!mRunning) return false;
+		long now = System.nanoTime() - mStartNanos;
+		// Only this thread adds to the ring, so the slots checked stay free
+		long tail = mTail.get();
+		int slots = (length + MAX_RECORD_LENGTH - 1) / MAX_RECORD_LENGTH;
+		if (tail - mHead.get() + slots > SLOTS) {
+			mDropped.incrementAndGet();
+			return false;
+		}
+		for (; length > 0; tail++) {
+			int slot = (int) (tail % SLOTS);
+			int n = Math.min(length, MAX_RECORD_LENGTH);
+			System.arraycopy(data, offset, mSlotData[slot], 0, n);
+			mSlotLength[slot] = n;
+			mSlotTime[slot] = now;
+			offset += n;
+			length -= n;
+		}
+		// Publishes the slot contents to the recorder thread
+		mTail.lazySet(tail);
+		return true;
+	}
+
+	/**
+	 * Return the base name of the current session's segment files. */
+	public String getSessionName() {
+		return mSessionName;
+	}
+
+	/**
+	 * Return the number of chunks stored. */
+	public long getRecordCount() {
+		return mRecords.get();
+	}
+
+	/**
+	 * Return the number of chunks dropped because the recorder fell behind. */
+	public long getDroppedCount() {
+		return mDropped.get();
+	}
+
+	/**
+	 * Return the number of payload bytes stored. */
+	public long getByteCount() {
+		return mBytes.get();
+	}
+
+	/**
+	 * Return the segment file with the given index of a session.
+	 */
+	public static File segmentFile(File directory, String sessionName, int index) {
+		return new File(directory, String.format(Locale.US, "%s-%03d%s", sessionName, index, EXTENSION));
+	}
+
+	private void drainLoop() {
+		try {
+			while (true) {
+				boolean running = mRunning;
+				long head = mHead.get();
+				long tail = mTail.get();
+				if (head == tail) {
+					if (!running) break;
+					updateHeader();
+					LockSupport.parkNanos(5 * 1000000L);
+					continue;
+				}
+				for (; head < tail; head++) {
+					int slot = (int) (head % SLOTS);
+					int length = mSlotLength[slot];
+					if (mSegment.remaining() < RECORD_HEADER + length + 2) {
+						nextSegment();
+					}
+					mSegment.putShort((short) length);
+					mSegment.putLong(mSlotTime[slot]);
+					mSegment.put(mSlotData[slot], 0, length);
+					mSegmentRecords++;
+					mRecords.incrementAndGet();
+					mBytes.addAndGet(length);
+					// Hands the slot back to the reader thread
+					mHead.lazySet(head + 1);
+				}
+			}
+			closeSegment();
+		} catch (IOException e) {
+			// Recording is best effort, stop without disturbing the link
+			mRunning = false;
+			try {
+				if (mFile != null) mFile.close();
+			} catch (IOException e2) {
+				// Nothing left to save
+			}
+		}
+		Listener listener;
+		synchronized (this) {
+			listener = mStopListener;
+			mStopListener = null;
+			mThread = null;
+		}
+		if (listener != null) listener.onStopped(this);
+	}
+
+	private void openSegment() throws IOException {
+		File file = segmentFile(mDirectory, mSessionName, mSegmentIndex);
+		mFile = new RandomAccessFile(file, "rw");
+		mFile.setLength(mSegmentSize);
+		mSegment = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+		mSegment.order(ByteOrder.LITTLE_ENDIAN);
+		mSegment.putInt(H_MAGIC, MAGIC);
+		mSegment.putInt(H_VERSION, VERSION);
+		mSegment.putInt(H_SEGMENT, mSegmentIndex);
+		mSegment.putLong(H_START_TIME, mStartTime);
+		mSegment.position(HEADER_SIZE);
+		mSegmentRecords = 0;
+		updateHeader();
+
+		File expired = segmentFile(mDirectory, mSessionName, mSegmentIndex - mMaxSegments);
+		if (mSegmentIndex >= mMaxSegments) expired.delete();
+	}
+
+	private void nextSegment() throws IOException {
+		closeSegment();
+		mSegmentIndex++;
+		openSegment();
+	}
+
+	private void closeSegment() throws IOException {
+		// Terminate the records, there is always room for the end marker
+		mSegment.putShort(mSegment.position(), (short) 0);
+		updateHeader();
+		mSegment.force();
+		mFile.close();
+		mSegment = null;
+		mFile = null;
+	}
+
+	private void updateHeader() {
+		mSegment.putInt(H_END, mSegment.position());
+		mSegment.putLong(H_RECORDS, mSegmentRecords);
+	}
+}
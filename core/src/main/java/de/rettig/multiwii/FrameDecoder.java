@@ -0,0 +1,384 @@
+package de.rettig.multiwii;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reassembles the status frames sent in answer to an "M" request from an
+ * arbitrarily chunked byte stream and decodes them into a {@link Copter}.
+ *
+ * The layout of each frame, and with it the frame length, is looked up in
+ * a {@link FrameFormats} registry by the version byte following the 'M'.
+ * A frame of unknown version is ended by the delimiter at the shortest
+ * registered length it reaches.
+ *
+ * A frame is only accepted if it starts with 'M', its delimiter follows
+ * at the length of its layout and its bounded fields are in range. When a
+ * frame fails, every byte collected for it after its leading 'M' is fed
+ * through the decoder again, so the next frame starting among them is
+ * found, and completed if it is already whole, without waiting for more
+ * data. While out of step only an 'M' followed by a known version starts
+ * a frame. A delimiter followed by a known version instead of an 'M' was
+ * the next frame's leading 'M', which happens when a frame lost a byte
+ * after its last checked field. Every loss of step counts as a resync.
+ *
+ * Incoming bytes are collected in a preallocated ring of frame slots, so a
+ * completed frame stays readable through {@link #getFrameBuffer()}, or
+ * field by field through {@link #getFrame()}, until a few more frames have
+ * arrived. Only the fields shown on screen are decoded into the Copter.
+ * Nothing is allocated per chunk or per frame.
+ * An instance is not thread safe and must only be fed by a single thread.
+ */
+public class FrameDecoder implements StreamDecoder {
+
+	/** Length of a MultiWii 1.8 status frame, not counting the trailing delimiter. */
+	public static final int FRAME_LENGTH = 154;
+	/** Byte that terminates a complete frame. */
+	public static final byte DELIMITER = 'M';
+
+	// Number of frame slots in the ring
+	private static final int SLOTS = 4;
+	// Size of a slot, enough for the longest layout and the byte that
+	// broke it
+	private static final int SLOT_SIZE = FrameFormat.MAX_LENGTH + 1;
+	// Bytes collected before the layout is known: the 'M' and the version
+	private static final int HEADER = 2;
+
+	private final FrameFormats formats;
+	private Listener listener;
+	private final byte[] ring = new byte[SLOTS * SLOT_SIZE];
+	// Start of the slot currently being filled
+	private int slot = 0;
+	// Number of bytes collected in the current slot
+	private int dataIndex = 0;
+	// Bytes to collect before the next check: 0 while waiting for the 'M',
+	// then HEADER, then the length of the layout
+	private int expected = 0;
+	// Layout of the current frame, null until the version byte is in
+	private FrameFormat format;
+	// true if the layout was guessed from the length
+	private boolean guessing;
+	// Start and layout of the most recently completed frame, -1 and null
+	// if there is none yet
+	private int frameOffset = -1;
+	private FrameFormat frameFormat;
+	private long frameCount = 0;
+	private long discardedCount = 0;
+	private long resyncCount = 0;
+	// false after a loss of step until the next frame is completed
+	private boolean inStep = true;
+	// true if the last byte was the delimiter of a completed frame
+	private boolean afterFrame = false;
+	// true if the last completed frame was of unknown version
+	private boolean lastGuessed = false;
+	// Bytes of a failed frame still to be fed again, and a spare buffer to
+	// build the next such run in; neither holds more than a slot
+	private byte[] replay = new byte[SLOT_SIZE];
+	private byte[] spare = new byte[SLOT_SIZE];
+	private int replayPos = 0;
+	private int replayLength = 0;
+	private final StatusFrame frame = new StatusFrame();
+
+	/**
+	 * Create a decoder for the layouts of {@link FrameFormats#getDefault()}.
+	 */
+	public FrameDecoder() {
+		this(FrameFormats.getDefault());
+	}
+
+	/**
+	 * Create a decoder for the layouts of the given registry.
+	 */
+	public FrameDecoder(FrameFormats formats) {
+		this.formats = formats;
+	}
+
+	/**
+	 * Feed a chunk of received bytes. Every frame completed by the chunk is
+	 * decoded into the given Copter, so it holds the newest state afterwards.
+	 * @param data  The received bytes
+	 * @param offset  Index of the first byte to consume
+	 * @param length  Number of bytes to consume
+	 * @param copter  The Copter to fill
+	 * @return The number of frames completed by this chunk
+	 */
+	@Override
+	public int decode(byte[] data, int offset, int length, Copter copter) {
+		int completed = 0;
+		int end = offset + length;
+		int i = offset;
+		while (i < end) {
+			// Copy up to the next byte that needs a look, then look at it
+			int n = Math.min(expected - dataIndex, end - i);
+			if (n == 1) {
+				ring[slot + dataIndex++] = data[i++];
+			} else if (n > 0) {
+				System.arraycopy(data, i, ring, slot + dataIndex, n);
+				dataIndex += n;
+				i += n;
+			} else {
+				if (endOfData(data[i++], copter)) completed++;
+				if (replayLength > 0) completed += replay(copter);
+			}
+		}
+		return completed;
+	}
+
+	/**
+	 * Feed all remaining bytes of the given buffer. The buffer's position is
+	 * advanced to its limit.
+	 * @see #decode(byte[], int, int, Copter)
+	 */
+	public int decode(ByteBuffer src, Copter copter) {
+		int length = src.remaining();
+		if (src.hasArray()) {
+			int completed = decode(src.array(), src.arrayOffset() + src.position(), length, copter);
+			src.position(src.limit());
+			return completed;
+		}
+		int completed = 0;
+		while (src.hasRemaining()) {
+			int n = Math.min(expected - dataIndex, src.remaining());
+			if (n > 0) {
+				src.get(ring, slot + dataIndex, n);
+				dataIndex += n;
+			} else {
+				if (endOfData(src.get(), copter)) completed++;
+				if (replayLength > 0) completed += replay(copter);
+			}
+		}
+		return completed;
+	}
+
+	@Override
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Drop a partially received frame, e.g. after the connection was reset.
+	 */
+	@Override
+	public void reset() {
+		startFrame();
+		replayLength = 0;
+		inStep = true;
+		afterFrame = false;
+	}
+
+	private void startFrame() {
+		dataIndex = 0;
+		expected = 0;
+		format = null;
+	}
+
+	// Feed the bytes of a failed frame again. A frame failing among them
+	// puts its own bytes, followed by the rest of the run, up for replay.
+	private int replay(Copter copter) {
+		int completed = 0;
+		while (replayPos < replayLength) {
+			byte b = replay[replayPos++];
+			if (dataIndex < expected) {
+				ring[slot + dataIndex++] = b;
+			} else if (endOfData(b, copter)) {
+				completed++;
+			}
+		}
+		replayPos = 0;
+		replayLength = 0;
+		return completed;
+	}
+
+	// Handle a byte arriving when the expected number of bytes is in: take
+	// the leading 'M', pick the layout once the version is in, end the
+	// frame at its delimiter, or try a longer layout if the length was
+	// guessed. Returns true if a frame was completed.
+	private boolean endOfData(byte b, Copter copter) {
+		if (dataIndex == 0) {
+			boolean delimited = afterFrame;
+			afterFrame = false;
+			if (b == DELIMITER) {
+				ring[slot] = b;
+				dataIndex = 1;
+				expected = HEADER;
+			} else if (delimited && formats.forVersion(b & 0xFF) != null) {
+				// The delimiter was this frame's 'M'; the frame before it
+				// lost a byte that no check covers
+				ring[slot] = DELIMITER;
+				ring[slot + 1] = b;
+				dataIndex = HEADER;
+				expected = HEADER;
+			} else {
+				// Garbage between frames
+				loseStep();
+			}
+			return false;
+		}
+		if (format == null) {
+			FrameFormat f = formats.forVersion(ring[slot + 1] & 0xFF);
+			guessing = f == null;
+			// An unknown version only starts a frame while in step, or if
+			// the copter is known to send one
+			if (guessing && (inStep || lastGuessed || frameCount == 0)) {
+				f = formats.longerThan(HEADER);
+			}
+			if (f == null) {
+				failFrame(b);
+				return false;
+			}
+			format = f;
+			expected = f.getLength();
+			ring[slot + dataIndex++] = b;
+			return false;
+		}
+		if (b == DELIMITER && format.isValid(ring, slot)) {
+			completeFrame(copter);
+			return true;
+		}
+		FrameFormat longer = guessing && b != DELIMITER ? formats.longerThan(expected) : null;
+		if (longer != null) {
+			format = longer;
+			expected = longer.getLength();
+			ring[slot + dataIndex++] = b;
+		} else {
+			// Bytes were lost or added, or the frame is damaged
+			discardedCount++;
+			failFrame(b);
+		}
+		return false;
+	}
+
+	private void loseStep() {
+		if (inStep) resyncCount++;
+		inStep = false;
+	}
+
+	// Drop the current frame and feed every byte after its leading 'M',
+	// followed by the rest of a replay in progress, through the decoder
+	// again
+	private void failFrame(byte b) {
+		loseStep();
+		ring[slot + dataIndex] = b;
+		int n = dataIndex;
+		int rest = replayLength - replayPos;
+		byte[] next = spare;
+		System.arraycopy(ring, slot + 1, next, 0, n);
+		System.arraycopy(replay, replayPos, next, n, rest);
+		spare = replay;
+		replay = next;
+		replayPos = 0;
+		replayLength = n + rest;
+		startFrame();
+	}
+
+	// Decode the collected frame and start the next one
+	private void completeFrame(Copter copter) {
+		format.decode(ring, slot, copter);
+		frameOffset = slot;
+		frameFormat = format;
+		frameCount++;
+		inStep = true;
+		afterFrame = true;
+		lastGuessed = guessing;
+		slot += SLOT_SIZE;
+		if (slot == ring.length) slot = 0;
+		startFrame();
+		if (listener != null) listener.onDecoded(copter);
+	}
+
+	/**
+	 * Decode one complete MultiWii 1.8 status frame. The same as
+	 * {@link FrameFormat#decode} of {@link FrameFormats#MULTIWII_1_8}.
+	 * @param frame  Array holding the frame
+	 * @param o  Index of the first byte of the frame
+	 * @param copter  The Copter to fill
+	 */
+	public static void decodeFrame(byte[] frame, int o, Copter copter) {
+		copter.ax = bytesToInt(frame[o + 2], frame[o + 3]);
+		copter.ay = bytesToInt(frame[o + 4], frame[o + 5]);
+		copter.az = bytesToInt(frame[o + 6], frame[o + 7]);
+
+		copter.gx = bytesToInt(frame[o + 8], frame[o + 9]);
+		copter.gy = bytesToInt(frame[o + 10], frame[o + 11]);
+		copter.gz = bytesToInt(frame[o + 12], frame[o + 13]);
+
+		copter.magX = bytesToInt(frame[o + 14], frame[o + 15]) / 3;
+		copter.magY = bytesToInt(frame[o + 16], frame[o + 17]) / 3;
+		copter.magZ = bytesToInt(frame[o + 18], frame[o + 19]) / 3;
+
+		copter.baro = bytesToInt(frame[o + 20], frame[o + 21]);
+		copter.head = bytesToInt(frame[o + 22], frame[o + 23]);
+
+		copter.angleX = bytesToInt(frame[o + 78], frame[o + 79]) / 10;
+		copter.angleY = bytesToInt(frame[o + 80], frame[o + 81]) / 10;
+	}
+
+	/**
+	 * Combine a little endian byte pair into a signed 16 bit value.
+	 */
+	public static int bytesToInt(byte b1, byte b2) {
+		return (b1 & 0xFF) + (b2 << 8);
+	}
+
+	/**
+	 * Return the ring holding the received frames.
+	 * @see #getFrameOffset()
+	 */
+	public byte[] getFrameBuffer() {
+		return ring;
+	}
+
+	/**
+	 * Return the index in {@link #getFrameBuffer()} of the most recently
+	 * completed frame, or -1 if no frame was completed yet. The frame stays
+	 * intact until the fourth following frame starts to arrive.
+	 */
+	public int getFrameOffset() {
+		return frameOffset;
+	}
+
+	/**
+	 * Return the layout of the most recently completed frame, or null if no
+	 * frame was completed yet. Its fields are read from
+	 * {@link #getFrameBuffer()} at {@link #getFrameOffset()}.
+	 */
+	public FrameFormat getFormat() {
+		return frameFormat;
+	}
+
+	/**
+	 * Return a flyweight over the most recently completed frame, reading it
+	 * with the frame's layout, or null if no frame was completed yet. The
+	 * same instance is moved along as frames arrive; it is valid on the
+	 * decoding thread until the fourth following frame starts to arrive.
+	 */
+	public StatusFrame getFrame() {
+		if (frameFormat == null) return null;
+		return frame.wrap(frameFormat, ring, frameOffset);
+	}
+
+	/**
+	 * Return the number of frames completed since this decoder was created. */
+	public long getFrameCount() {
+		return frameCount;
+	}
+
+	/**
+	 * Return the number of frames dropped because the delimiter did not
+	 * follow the last frame byte or a field was out of bounds. */
+	@Override
+	public long getDiscardedCount() {
+		return discardedCount;
+	}
+
+	public boolean isPartial() {
+		return dataIndex > 0;
+	}
+
+	/**
+	 * Return the number of times the decoder lost step with the stream,
+	 * either through a dropped frame or through bytes between frames. A
+	 * loss of step lasts until the next frame is completed. */
+	public long getResyncCount() {
+		return resyncCount;
+	}
+}
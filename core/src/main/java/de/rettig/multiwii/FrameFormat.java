@@ -0,0 +1,326 @@
+package de.rettig.multiwii;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Layout of the legacy status frame of one firmware version, described as
+ * data: every field has a name, an offset, a width of one or two bytes, a
+ * sign and a divisor that scales it for the display. The description is
+ * compiled once into flat tables, so reading a field is a table lookup and
+ * a couple of shifts, whatever the layout. A layout placing the decoded
+ * fields like MultiWii 1.8 is decoded by unrolled code instead.
+ *
+ * A layout is written as text, one field per line:
+ * <pre>
+ * name offset type [/divisor] [min..max]
+ * name[count] offset type [/divisor] [min..max]
+ * </pre>
+ * where type is u8, s8, u16 or s16 and a count declares consecutive fields
+ * name0, name1 and so on. A frame with a field outside its bounds, taken
+ * as sent before dividing, is not valid. Lines starting with # are
+ * comments. The fields
+ * named like the members of {@link Copter} (ax, ay, az, gx, gy, gz, magX,
+ * magY, magZ, baro, head, angleX, angleY) are decoded into it with every
+ * frame; all others are read on demand with {@link #read(byte[], int, int)}
+ * or through a {@link StatusFrame}.
+ */
+public class FrameFormat {
+
+	/** Longest frame a layout may describe, not counting the delimiter. */
+	public static final int MAX_LENGTH = 256;
+
+	// The Copter members filled by decode(), in the order of COPTER_FIELDS
+	private static final String[] COPTER_FIELDS = {
+		"ax", "ay", "az", "gx", "gy", "gz", "magX", "magY", "magZ",
+		"baro", "head", "angleX", "angleY"
+	};
+	private static final int AX = 0, AY = 1, AZ = 2, GX = 3, GY = 4, GZ = 5;
+	private static final int MAG_X = 6, MAG_Y = 7, MAG_Z = 8, BARO = 9, HEAD = 10;
+	private static final int ANGLE_X = 11, ANGLE_Y = 12;
+
+	// A compiled field holds its offset in the low 16 bits, 1 in bit 16 if
+	// it is 16 bits wide, and in the top byte the shift that sign extends
+	// it: 0 if unsigned, 16 or 24 if signed
+	private static final int WIDE = 1 << 16;
+	private static final int SHIFT = 24;
+	// Compiled field of a Copter member the layout does not have
+	private static final int ABSENT = -1;
+
+	// The Copter members as laid out by MultiWii 1.8; a layout placing them
+	// the same way is decoded by the unrolled FrameDecoder.decodeFrame()
+	private static final int S16 = WIDE | 16 << SHIFT;
+	private static final int[] LEGACY_FIELDS = {
+		2 | S16, 4 | S16, 6 | S16, 8 | S16, 10 | S16, 12 | S16, 14 | S16, 16 | S16, 18 | S16,
+		20 | S16, 22 | S16, 78 | S16, 80 | S16
+	};
+	private static final long[] LEGACY_MULTIPLIERS = {
+		0, 0, 0, 0, 0, 0, multiplier(3), multiplier(3), multiplier(3),
+		0, 0, multiplier(10), multiplier(10)
+	};
+
+	private final String mName;
+	private final int mVersion;
+	private final int mLength;
+
+	// One entry per field, in the order of the description
+	private final String[] mFieldNames;
+	private final int[] mFields;
+	private final int[] mDivisors;
+	// Reciprocal of each divisor, 0 for a divisor of 1
+	private final long[] mMultipliers;
+	// Compiled fields with bounds, and their bounds
+	private final int[] mChecks;
+	private final int[] mMins;
+	private final int[] mMaxs;
+	// Compiled field and multiplier of each Copter member, copied out of
+	// the tables above so decode() needs no second lookup
+	private final int[] mCopterFields = new int[COPTER_FIELDS.length];
+	private final long[] mCopterMultipliers = new long[COPTER_FIELDS.length];
+	private final boolean mLegacy;
+
+	/**
+	 * Compile a layout.
+	 * @param name  Name of the firmware, for display
+	 * @param version  Version byte at offset 1 of the frame, or -1 if the version is not known
+	 * @param length  Length of the frame from its leading 'M', not counting the delimiter
+	 * @param description  The fields, as described above
+	 * @throws IllegalArgumentException if the description is malformed or a field lies outside the frame
+	 */
+	public FrameFormat(String name, int version, int length, String description) {
+		if (length < 2 || length > MAX_LENGTH) throw new IllegalArgumentException("length " + length);
+		mName = name;
+		mVersion = version;
+		mLength = length;
+
+		List<String> names = new ArrayList<String>();
+		List<int[]> fields = new ArrayList<int[]>();
+		List<int[]> checks = new ArrayList<int[]>();
+		for (String line : description.split("\n")) {
+			line = line.trim();
+			if (line.length() == 0 || line.startsWith("#")) continue;
+			parse(line, names, fields, checks);
+		}
+		mChecks = new int[checks.size()];
+		mMins = new int[checks.size()];
+		mMaxs = new int[checks.size()];
+		for (int i = 0; i < mChecks.length; i++) {
+			mChecks[i] = checks.get(i)[0];
+			mMins[i] = checks.get(i)[1];
+			mMaxs[i] = checks.get(i)[2];
+		}
+		mFieldNames = names.toArray(new String[names.size()]);
+		mFields = new int[fields.size()];
+		mDivisors = new int[fields.size()];
+		mMultipliers = new long[fields.size()];
+		for (int i = 0; i < mFields.length; i++) {
+			mFields[i] = fields.get(i)[0];
+			mDivisors[i] = fields.get(i)[1];
+			mMultipliers[i] = multiplier(mDivisors[i]);
+		}
+		for (int c = 0; c < COPTER_FIELDS.length; c++) {
+			int field = indexOf(COPTER_FIELDS[c]);
+			mCopterFields[c] = field < 0 ? ABSENT : mFields[field];
+			mCopterMultipliers[c] = field < 0 ? 0 : mMultipliers[field];
+		}
+		mLegacy = Arrays.equals(mCopterFields, LEGACY_FIELDS)
+				&& Arrays.equals(mCopterMultipliers, LEGACY_MULTIPLIERS);
+	}
+
+	// Add the fields declared by one line, and their bounds if given
+	private void parse(String line, List<String> names, List<int[]> fields, List<int[]> checks) {
+		String[] t = line.split("\\s+");
+		if (t.length < 3) {
+			throw new IllegalArgumentException(mName + ": malformed field '" + line + "'");
+		}
+		String name = t[0];
+		int count = 1;
+		boolean array = name.endsWith("]") && name.indexOf('[') > 0;
+		try {
+			if (array) {
+				count = Integer.parseInt(name.substring(name.indexOf('[') + 1, name.length() - 1));
+				name = name.substring(0, name.indexOf('['));
+			}
+			int offset = Integer.parseInt(t[1]);
+			int divisor = 1;
+			int[] bounds = null;
+			for (int k = 3; k < t.length; k++) {
+				int range = t[k].indexOf("..");
+				if (t[k].startsWith("/")) {
+					divisor = Integer.parseInt(t[k].substring(1));
+				} else if (range > 0) {
+					bounds = new int[] { Integer.parseInt(t[k].substring(0, range)),
+							Integer.parseInt(t[k].substring(range + 2)) };
+				} else {
+					throw new IllegalArgumentException(mName + ": malformed field '" + line + "'");
+				}
+			}
+			int flags;
+			int width;
+			if (t[2].equals("u8")) {
+				flags = 0;
+				width = 1;
+			} else if (t[2].equals("s8")) {
+				flags = 24 << SHIFT;
+				width = 1;
+			} else if (t[2].equals("u16")) {
+				flags = WIDE;
+				width = 2;
+			} else if (t[2].equals("s16")) {
+				flags = WIDE | 16 << SHIFT;
+				width = 2;
+			} else {
+				throw new IllegalArgumentException(mName + ": unknown type in '" + line + "'");
+			}
+			if (divisor < 1 || divisor > 0xFFFF || count < 1 || offset < 1 || offset + count * width > mLength) {
+				throw new IllegalArgumentException(mName + ": field outside the frame or bad divisor in '" + line + "'");
+			}
+			for (int i = 0; i < count; i++) {
+				int spec = (offset + i * width) | flags;
+				names.add(array ? name + i : name);
+				fields.add(new int[] { spec, divisor });
+				if (bounds != null) checks.add(new int[] { spec, bounds[0], bounds[1] });
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(mName + ": malformed number in '" + line + "'");
+		}
+	}
+
+	/**
+	 * Return the name of the firmware. */
+	public String getName() {
+		return mName;
+	}
+
+	/**
+	 * Return the version byte, -1 if not known. */
+	public int getVersion() {
+		return mVersion;
+	}
+
+	/**
+	 * Return the frame length, not counting the delimiter. */
+	public int getLength() {
+		return mLength;
+	}
+
+	/**
+	 * Return the index of a field, to be looked up once and then passed to
+	 * {@link #read(byte[], int, int)}.
+	 * @param name  The field name, e.g. "motor0"
+	 * @return The index, or -1 if the layout has no such field
+	 */
+	public int indexOf(String name) {
+		for (int i = 0; i < mFieldNames.length; i++) {
+			if (mFieldNames[i].equals(name)) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Return the number of fields. */
+	public int getFieldCount() {
+		return mFields.length;
+	}
+
+	/**
+	 * Return the name of a field.
+	 * @param field  Index from 0 to {@link #getFieldCount()} - 1
+	 */
+	public String getFieldName(int field) {
+		return mFieldNames[field];
+	}
+
+	/**
+	 * Read a field, scaled by its divisor.
+	 * @param frame  Array holding the frame
+	 * @param o  Index of the first byte of the frame
+	 * @param field  Index of the field from {@link #indexOf(String)}
+	 */
+	public int read(byte[] frame, int o, int field) {
+		return read(frame, o, mFields[field], mMultipliers[field]);
+	}
+
+	/**
+	 * Read a field as sent, without dividing it.
+	 * @param frame  Array holding the frame
+	 * @param o  Index of the first byte of the frame
+	 * @param field  Index of the field from {@link #indexOf(String)}
+	 */
+	public int readRaw(byte[] frame, int o, int field) {
+		return read(frame, o, mFields[field], 0);
+	}
+
+	// Return the reciprocal of a divisor in 32 bit fixed point, rounded up;
+	// the product with any 16 bit value then truncates to the exact quotient
+	private static long multiplier(int divisor) {
+		return divisor == 1 ? 0 : (1L << 32) / divisor + 1;
+	}
+
+	// Read a compiled field without branching on its type, and divide it by
+	// multiplying with the reciprocal, rounding towards zero like /
+	private static int read(byte[] frame, int o, int spec, long multiplier) {
+		int i = o + (spec & 0xFFFF);
+		int wide = (spec >>> 16) & 1;
+		int shift = spec >>> SHIFT;
+		int value = (frame[i] & 0xFF) | (frame[i + wide] & (-wide & 0xFF)) << 8;
+		value = value << shift >> shift;
+		if (multiplier == 0) return value;
+		int quotient = (int) ((Math.abs(value) * multiplier) >>> 32);
+		return value < 0 ? -quotient : quotient;
+	}
+
+	/**
+	 * Check the fields that have bounds.
+	 * @param frame  Array holding the frame
+	 * @param o  Index of the first byte of the frame
+	 * @return true if every bounded field is within its bounds
+	 */
+	public boolean isValid(byte[] frame, int o) {
+		for (int i = 0; i < mChecks.length; i++) {
+			int value = read(frame, o, mChecks[i], 0);
+			if (value < mMins[i] || value > mMaxs[i]) return false;
+		}
+		return true;
+	}
+
+	// Read the Copter member c, or keep its value if the layout lacks it
+	private int copter(byte[] frame, int o, int c, int current) {
+		int spec = mCopterFields[c];
+		if (spec == ABSENT) return current;
+		return read(frame, o, spec, mCopterMultipliers[c]);
+	}
+
+	/**
+	 * Decode the fields shown on screen into a Copter. Members the layout
+	 * does not describe keep their values.
+	 * @param frame  Array holding the frame
+	 * @param o  Index of the first byte of the frame
+	 * @param copter  The Copter to fill
+	 */
+	public void decode(byte[] frame, int o, Copter copter) {
+		if (mLegacy) {
+			FrameDecoder.decodeFrame(frame, o, copter);
+			return;
+		}
+		copter.ax = copter(frame, o, AX, copter.ax);
+		copter.ay = copter(frame, o, AY, copter.ay);
+		copter.az = copter(frame, o, AZ, copter.az);
+		copter.gx = copter(frame, o, GX, copter.gx);
+		copter.gy = copter(frame, o, GY, copter.gy);
+		copter.gz = copter(frame, o, GZ, copter.gz);
+		copter.magX = copter(frame, o, MAG_X, copter.magX);
+		copter.magY = copter(frame, o, MAG_Y, copter.magY);
+		copter.magZ = copter(frame, o, MAG_Z, copter.magZ);
+		copter.baro = copter(frame, o, BARO, copter.baro);
+		copter.head = copter(frame, o, HEAD, copter.head);
+		copter.angleX = copter(frame, o, ANGLE_X, copter.angleX);
+		copter.angleY = copter(frame, o, ANGLE_Y, copter.angleY);
+	}
+
+	@Override
+	public String toString() {
+		return mName + " (version " + mVersion + ", " + mLength + " bytes)";
+	}
+}
@@ -0,0 +1,137 @@
+package de.rettig.multiwii;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Registry of the status frame layouts a {@link FrameDecoder} understands.
+ * A frame's layout is looked up by the version byte that follows its
+ * leading 'M', in a table indexed by that byte, so the number of
+ * registered layouts does not slow down decoding. A frame with an unknown
+ * version is matched by its length instead, trying the registered lengths
+ * from the shortest.
+ *
+ * Layouts may be registered from any thread; a decoder picks them up with
+ * the next frame.
+ */
+public class FrameFormats {
+
+	/**
+	 * The frame of MultiWii 1.8, 154 bytes, version byte 18. Angles and
+	 * heading are bounded, which catches most frames out of step.
+	 */
+	public static final FrameFormat MULTIWII_1_8 = new FrameFormat("MultiWii 1.8", 18, 154,
+			"version 1 u8\n" +
+			"ax 2 s16\n" +
+			"ay 4 s16\n" +
+			"az 6 s16\n" +
+			"gx 8 s16\n" +
+			"gy 10 s16\n" +
+			"gz 12 s16\n" +
+			"magX 14 s16 /3\n" +
+			"magY 16 s16 /3\n" +
+			"magZ 18 s16 /3\n" +
+			"baro 20 s16\n" +
+			"head 22 s16 -360..360\n" +
+			"servo[8] 24 u16\n" +
+			"motor[8] 40 u16\n" +
+			"rc[8] 56 u16\n" +
+			"present 72 u8\n" +
+			"mode 73 u8\n" +
+			"cycleTime 74 u16\n" +
+			"i2cErrors 76 u16\n" +
+			"angleX 78 s16 /10 -1800..1800\n" +
+			"angleY 80 s16 /10 -1800..1800\n" +
+			"multiType 82 u8\n" +
+			"pid[24] 83 u8\n" +
+			"rcRate 107 u8\n" +
+			"rcExpo 108 u8\n" +
+			"rollPitchRate 109 u8\n" +
+			"yawRate 110 u8\n" +
+			"dynThrPid 111 u8\n" +
+			"activation[28] 112 u8\n" +
+			"gpsDistance 140 u16\n" +
+			"gpsDirection 142 s16\n" +
+			"gpsNumSat 144 u8\n" +
+			"gpsFix 145 u8\n" +
+			"gpsUpdate 146 u8\n" +
+			"powerMeterSum 147 u16\n" +
+			"powerTrigger 149 u16\n" +
+			"vbat 151 u8\n" +
+			"baroAltitude 152 s16\n");
+
+	private static final Comparator<FrameFormat> BY_LENGTH = new Comparator<FrameFormat>() {
+		public int compare(FrameFormat a, FrameFormat b) {
+			return a.getLength() - b.getLength();
+		}
+	};
+
+	private static final FrameFormats sDefault = new FrameFormats();
+	static {
+		sDefault.register(MULTIWII_1_8);
+	}
+
+	// Replaced as a whole on every registration, never modified
+	private volatile FrameFormat[] mByVersion = new FrameFormat[256];
+	private volatile FrameFormat[] mByLength = new FrameFormat[0];
+
+	/**
+	 * Return the registry used by decoders created without one. It holds
+	 * {@link #MULTIWII_1_8}.
+	 */
+	public static FrameFormats getDefault() {
+		return sDefault;
+	}
+
+	/**
+	 * Add a layout. It replaces a layout registered with the same version.
+	 * @param format  The layout; if its version is -1 it is only matched by length
+	 */
+	public synchronized void register(FrameFormat format) {
+		int version = format.getVersion();
+		FrameFormat replaced = null;
+		if (version >= 0) {
+			FrameFormat[] byVersion = mByVersion.clone();
+			replaced = byVersion[version & 0xFF];
+			byVersion[version & 0xFF] = format;
+			mByVersion = byVersion;
+		}
+		int n = replaced == null ? mByLength.length + 1 : mByLength.length;
+		FrameFormat[] byLength = new FrameFormat[n];
+		int i = 0;
+		for (FrameFormat f : mByLength) {
+			if (f != replaced) byLength[i++] = f;
+		}
+		byLength[i] = format;
+		Arrays.sort(byLength, BY_LENGTH);
+		mByLength = byLength;
+	}
+
+	/**
+	 * Return the layout of a version.
+	 * @param version  The version byte, 0 to 255
+	 * @return The layout, or null if none is registered for the version
+	 */
+	public FrameFormat forVersion(int version) {
+		return mByVersion[version];
+	}
+
+	/**
+	 * Return the shortest layout longer than a given length, to try next
+	 * for a frame of unknown version.
+	 * @param length  Number of bytes already collected
+	 * @return The layout, or null if none is longer
+	 */
+	public FrameFormat longerThan(int length) {
+		for (FrameFormat f : mByLength) {
+			if (f.getLength() > length) return f;
+		}
+		return null;
+	}
+
+	/**
+	 * Return all registered layouts, shortest first. */
+	public FrameFormat[] getFormats() {
+		return mByLength.clone();
+	}
+}
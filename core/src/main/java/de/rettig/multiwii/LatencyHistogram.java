@@ -0,0 +1,130 @@
+package de.rettig.multiwii;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records durations into a fixed set of logarithmic buckets and reports
+ * percentiles from them.
+ *
+ * Each power of two microseconds is split into 16 linear buckets, so a
+ * reported percentile is within about 6% of the recorded value, from 1 us up
+ * to several hours. Recording is lock free and never allocates; it may be
+ * done from several threads at once.
+ */
+public class LatencyHistogram {
+
+	// Linear buckets per power of two
+	private static final int SUB_BITS = 4;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	// Highest power of two in us that gets its own buckets
+	private static final int MAX_EXPONENT = 40;
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT;
+
+	private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong mCount = new AtomicLong();
+	private final AtomicLong mSum = new AtomicLong();
+	private final AtomicLong mMax = new AtomicLong();
+
+	/**
+	 * Record one duration.
+	 * @param nanos  The duration in ns, negative values are ignored
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) return;
+		mCounts.incrementAndGet(indexOf(nanos / 1000));
+		mCount.incrementAndGet();
+		mSum.addAndGet(nanos);
+		long max = mMax.get();
+		while (nanos > max && !mMax.compareAndSet(max, nanos)) {
+			max = mMax.get();
+		}
+	}
+
+	/**
+	 * Forget all recorded durations.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			mCounts.set(i, 0);
+		}
+		mCount.set(0);
+		mSum.set(0);
+		mMax.set(0);
+	}
+
+	/**
+	 * Return the number of recorded durations. */
+	public long getCount() {
+		return mCount.get();
+	}
+
+	/**
+	 * Return the longest recorded duration in ns. */
+	public long getMax() {
+		return mMax.get();
+	}
+
+	/**
+	 * Return the mean of the recorded durations in ns, 0 if there are none. */
+	public long getMean() {
+		long count = mCount.get();
+		return count == 0 ? 0 : mSum.get() / count;
+	}
+
+	/**
+	 * Return the duration below which the given share of the recorded
+	 * durations lie.
+	 * @param percentile  Between 0 and 100, e.g. 99 for the 99th percentile
+	 * @return The duration in ns, 0 if nothing was recorded
+	 */
+	public long getPercentile(double percentile) {
+		long count = mCount.get();
+		if (count == 0) return 0;
+		long rank = (long) Math.ceil(percentile / 100 * count);
+		if (rank < 1) rank = 1;
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += mCounts.get(i);
+			if (seen >= rank) {
+				// Middle of the bucket, but never more than actually recorded
+				long micros = (lowerBound(i) + lowerBound(i + 1)) / 2;
+				return Math.min(micros * 1000, mMax.get());
+			}
+		}
+		return mMax.get();
+	}
+
+	/**
+	 * Append a one line summary like "n=120 p50=12.3ms p99=40.1ms max=52.0ms".
+	 */
+	public void appendSummary(StringBuilder sb) {
+		sb.append("n=").append(getCount());
+		sb.append(" p50=");
+		appendMillis(sb, getPercentile(50));
+		sb.append(" p99=");
+		appendMillis(sb, getPercentile(99));
+		sb.append(" max=");
+		appendMillis(sb, getMax());
+	}
+
+	private static void appendMillis(StringBuilder sb, long nanos) {
+		long tenths = nanos / 100000;
+		sb.append(tenths / 10).append('.').append(tenths % 10).append("ms");
+	}
+
+	private static int indexOf(long micros) {
+		if (micros < SUB_COUNT) return (int) micros;
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		if (exponent > MAX_EXPONENT) return BUCKETS - 1;
+		int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+		return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+	}
+
+	private static long lowerBound(int index) {
+		if (index < SUB_COUNT) return index;
+		int exponent = index / SUB_COUNT + SUB_BITS - 1;
+		int sub = index % SUB_COUNT;
+		return (long) (SUB_COUNT + sub) << (exponent - SUB_BITS);
+	}
+}
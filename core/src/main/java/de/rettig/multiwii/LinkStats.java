@@ -0,0 +1,131 @@
+package de.rettig.multiwii;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Throughput and integrity counters of the link to the flight controller.
+ *
+ * The counters are updated without locking from whichever thread sees the
+ * event: the reading thread counts received bytes, the decoding thread
+ * counts frames and reads that ended inside one. One thread calls {@link #sample(long)}
+ * periodically; the last samples form a rolling window from which rates
+ * and a link quality figure are computed, so a degrading link shows up as
+ * falling rates before the display stops moving. The window is locked, so
+ * any thread may read the rates.
+ */
+public class LinkStats {
+
+	/** Bytes received. */
+	public static final int BYTES_IN = 0;
+	/** Bytes sent. */
+	public static final int BYTES_OUT = 1;
+	/** Frames or messages decoded. */
+	public static final int FRAMES = 2;
+	/** Frames or messages dropped by the decoder. */
+	public static final int DISCARDED = 3;
+	/** Reads that ended inside a frame or message, which then waits for the next read. */
+	public static final int SHORT_READS = 4;
+	/** Connections made after the first one. */
+	public static final int RECONNECTS = 5;
+	/** Times the decoder lost step with the stream and searched for the next frame. */
+	public static final int RESYNCS = 6;
+
+	private static final int COUNTERS = 7;
+
+	private final AtomicLongArray mCounts = new AtomicLongArray(COUNTERS);
+	private volatile boolean mConnectedBefore;
+
+	// Rolling window, guarded by this
+	private final long[][] mSamples;
+	private final long[] mSampleTimes;
+	private int mNext = 0;
+	private int mSampleCount = 0;
+
+	/**
+	 * Constructor.
+	 * @param windowSamples  Number of samples in the rolling window, at least 2
+	 */
+	public LinkStats(int windowSamples) {
+		if (windowSamples < 2) throw new IllegalArgumentException("window too small: " + windowSamples);
+		mSamples = new long[windowSamples][COUNTERS];
+		mSampleTimes = new long[windowSamples];
+	}
+
+	/**
+	 * Add to a counter.
+	 * @param counter  One of the counter constants, e.g. {@link #BYTES_IN}
+	 * @param delta  The amount to add
+	 */
+	public void add(int counter, long delta) {
+		mCounts.getAndAdd(counter, delta);
+	}
+
+	/**
+	 * Count a new connection; every connection but the first is a reconnect.
+	 */
+	public void onConnected() {
+		if (mConnectedBefore) mCounts.incrementAndGet(RECONNECTS);
+		mConnectedBefore = true;
+	}
+
+	/**
+	 * Return the total of a counter.
+	 * @param counter  One of the counter constants
+	 */
+	public long get(int counter) {
+		return mCounts.get(counter);
+	}
+
+	/**
+	 * Take a sample of all counters into the rolling window.
+	 * @param nowMillis  The current time in ms
+	 */
+	public synchronized void sample(long nowMillis) {
+		long[] s = mSamples[mNext];
+		for (int i = 0; i < COUNTERS; i++) {
+			s[i] = mCounts.get(i);
+		}
+		mSampleTimes[mNext] = nowMillis;
+		mNext = (mNext + 1) % mSamples.length;
+		if (mSampleCount < mSamples.length) mSampleCount++;
+	}
+
+	/**
+	 * Return how much a counter grew per second over the rolling window, 0
+	 * until two samples were taken.
+	 * @param counter  One of the counter constants
+	 */
+	public synchronized float getRate(int counter) {
+		if (mSampleCount < 2) return 0;
+		int newest = (mNext + mSamples.length - 1) % mSamples.length;
+		int oldest = (mNext + mSamples.length - mSampleCount) % mSamples.length;
+		long millis = mSampleTimes[newest] - mSampleTimes[oldest];
+		if (millis <= 0) return 0;
+		return (mSamples[newest][counter] - mSamples[oldest][counter]) * 1000f / millis;
+	}
+
+	/**
+	 * Return the share of frames that arrived intact over the rolling
+	 * window, from 0 to 1, or 1 if nothing arrived.
+	 */
+	public synchronized float getQuality() {
+		float frames = getRate(FRAMES);
+		float discarded = getRate(DISCARDED);
+		if (frames + discarded <= 0) return 1;
+		return frames / (frames + discarded);
+	}
+
+	/**
+	 * Append a short summary of the rates to the given builder.
+	 */
+	public synchronized void appendSummary(StringBuilder sb) {
+		sb.append("in ").append(Math.round(getRate(BYTES_IN))).append(" B/s");
+		sb.append(" out ").append(Math.round(getRate(BYTES_OUT))).append(" B/s");
+		sb.append(" frames ").append(Math.round(getRate(FRAMES))).append("/s");
+		sb.append("\nquality ").append(Math.round(getQuality() * 100)).append('%');
+		sb.append(" discarded ").append(get(DISCARDED));
+		sb.append(" resyncs ").append(get(RESYNCS));
+		sb.append(" short reads ").append(get(SHORT_READS));
+		sb.append(" reconnects ").append(get(RECONNECTS));
+	}
+}
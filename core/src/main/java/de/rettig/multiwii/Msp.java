@@ -0,0 +1,91 @@
+package de.rettig.multiwii;
+
+/**
+ * Constants and framing of the MultiWii Serial Protocol (MSP).
+ *
+ * A request is sent as <code>$M&lt;</code>, followed by the payload size, the
+ * command, the payload and a checksum, which is the XOR of size, command and
+ * payload bytes. Replies use the same framing with <code>$M&gt;</code>, or
+ * <code>$M!</code> if the flight controller does not know the command.
+ * Multi byte values are little endian.
+ */
+public final class Msp {
+
+	public static final int MSP_IDENT = 100;
+	public static final int MSP_STATUS = 101;
+	public static final int MSP_RAW_IMU = 102;
+	public static final int MSP_SERVO = 103;
+	public static final int MSP_MOTOR = 104;
+	public static final int MSP_RC = 105;
+	public static final int MSP_RAW_GPS = 106;
+	public static final int MSP_COMP_GPS = 107;
+	public static final int MSP_ATTITUDE = 108;
+	public static final int MSP_ALTITUDE = 109;
+
+	/** Largest payload a message can carry. */
+	public static final int MAX_PAYLOAD = 255;
+	/** Bytes added to the payload by the framing. */
+	public static final int OVERHEAD = 6;
+
+	private Msp() {
+	}
+
+	/**
+	 * Encode a message into the given array.
+	 * @param cmd  The command
+	 * @param payload  The payload, may be null if payloadLength is 0
+	 * @param payloadLength  Number of payload bytes
+	 * @param dst  Array to encode into, needs room for payloadLength + {@link #OVERHEAD} bytes
+	 * @param offset  Index in dst of the first encoded byte
+	 * @return The number of bytes written
+	 */
+	public static int encode(int cmd, byte[] payload, int payloadLength, byte[] dst, int offset) {
+		if (payloadLength > MAX_PAYLOAD) {
+			throw new IllegalArgumentException("payload too long: " + payloadLength);
+		}
+		int o = offset;
+		dst[o++] = '$';
+		dst[o++] = 'M';
+		dst[o++] = '<';
+		dst[o++] = (byte) payloadLength;
+		dst[o++] = (byte) cmd;
+		int checksum = payloadLength ^ cmd;
+		for (int i = 0; i < payloadLength; i++) {
+			dst[o++] = payload[i];
+			checksum ^= payload[i];
+		}
+		dst[o++] = (byte) checksum;
+		return o - offset;
+	}
+
+	/**
+	 * Return a new request without payload for the given command.
+	 */
+	public static byte[] request(int cmd) {
+		byte[] request = new byte[OVERHEAD];
+		encode(cmd, null, 0, request, 0);
+		return request;
+	}
+
+	/**
+	 * Read a signed 16 bit value.
+	 */
+	public static int read16(byte[] data, int offset) {
+		return (data[offset] & 0xFF) | (data[offset + 1] << 8);
+	}
+
+	/**
+	 * Read an unsigned 16 bit value.
+	 */
+	public static int readU16(byte[] data, int offset) {
+		return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
+	}
+
+	/**
+	 * Read a signed 32 bit value.
+	 */
+	public static int read32(byte[] data, int offset) {
+		return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8)
+				| ((data[offset + 2] & 0xFF) << 16) | (data[offset + 3] << 24);
+	}
+}
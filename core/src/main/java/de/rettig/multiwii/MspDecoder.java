@@ -0,0 +1,107 @@
+package de.rettig.multiwii;
+
+/**
+ * Decodes MSP replies into a {@link Copter}. Each reply only updates the
+ * fields it carries, so the Copter combines the newest values of all polled
+ * messages. Replies are reported to an optional {@link MspScheduler} so it
+ * can send the next requests; the send time of the answered request goes
+ * into {@link Copter#requestTime}.
+ */
+public class MspDecoder implements StreamDecoder, MspParser.Listener {
+
+	private final MspParser mParser = new MspParser();
+	private final MspScheduler mScheduler;
+	private Listener mListener;
+	// Target of the chunk currently being decoded
+	private Copter mCopter;
+
+	/**
+	 * Constructor.
+	 * @param scheduler  Told about every reply, may be null
+	 */
+	public MspDecoder(MspScheduler scheduler) {
+		mScheduler = scheduler;
+	}
+
+	public int decode(byte[] data, int offset, int length, Copter copter) {
+		mCopter = copter;
+		int completed = mParser.parse(data, offset, length, this);
+		mCopter = null;
+		return completed;
+	}
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	public void reset() {
+		mParser.reset();
+	}
+
+	/**
+	 * Return the number of replies dropped for a bad checksum. */
+	public long getDiscardedCount() {
+		return mParser.getChecksumErrorCount();
+	}
+
+	public boolean isPartial() {
+		return mParser.isPartial();
+	}
+
+	/**
+	 * Return the underlying parser, e.g. to inspect its counters. */
+	public MspParser getParser() {
+		return mParser;
+	}
+
+	public void onMessage(int cmd, byte[] p, int length) {
+		Copter c = mCopter;
+		switch (cmd) {
+		case Msp.MSP_STATUS:
+			if (length < 4) break;
+			c.cycleTime = Msp.readU16(p, 0);
+			c.i2cErrors = Msp.readU16(p, 2);
+			break;
+		case Msp.MSP_RAW_IMU:
+			if (length < 18) break;
+			c.ax = Msp.read16(p, 0);
+			c.ay = Msp.read16(p, 2);
+			c.az = Msp.read16(p, 4);
+			c.gx = Msp.read16(p, 6);
+			c.gy = Msp.read16(p, 8);
+			c.gz = Msp.read16(p, 10);
+			// Same scale as the mag values of the status frame
+			c.magX = Msp.read16(p, 12) / 3;
+			c.magY = Msp.read16(p, 14) / 3;
+			c.magZ = Msp.read16(p, 16) / 3;
+			break;
+		case Msp.MSP_MOTOR:
+			for (int i = 0; i < c.motor.length && 2 * i + 1 < length; i++) {
+				c.motor[i] = Msp.readU16(p, 2 * i);
+			}
+			break;
+		case Msp.MSP_RC:
+			for (int i = 0; i < c.rc.length && 2 * i + 1 < length; i++) {
+				c.rc[i] = Msp.readU16(p, 2 * i);
+			}
+			break;
+		case Msp.MSP_ATTITUDE:
+			if (length < 6) break;
+			c.angleX = Msp.read16(p, 0) / 10;
+			c.angleY = Msp.read16(p, 2) / 10;
+			c.head = Msp.read16(p, 4);
+			break;
+		case Msp.MSP_ALTITUDE:
+			if (length < 4) break;
+			// cm, shown in the same unit as the status frame's altitude
+			c.baro = Msp.read32(p, 0) / 10;
+			break;
+		}
+		c.requestTime = mScheduler != null ? mScheduler.onResponse(cmd) : 0;
+		if (mListener != null) mListener.onDecoded(c);
+	}
+
+	public void onError(int cmd) {
+		if (mScheduler != null) mScheduler.onError(cmd);
+	}
+}
@@ -0,0 +1,136 @@
+package de.rettig.multiwii;
+
+/**
+ * Streaming parser for MSP replies. Bytes may arrive in chunks of any size;
+ * every complete message with a valid checksum is passed to the
+ * {@link Listener}. The payload array is reused for every message.
+ * An instance is not thread safe.
+ */
+public class MspParser {
+
+	/**
+	 * Receives the parsed messages.
+	 */
+	public interface Listener {
+		/**
+		 * Called for every valid reply.
+		 * @param cmd  The command
+		 * @param payload  The payload, only valid during the call
+		 * @param length  Number of payload bytes
+		 */
+		void onMessage(int cmd, byte[] payload, int length);
+
+		/**
+		 * Called when the flight controller rejected a command.
+		 * @param cmd  The command
+		 */
+		void onError(int cmd);
+	}
+
+	private static final int IDLE = 0;
+	private static final int HEADER_START = 1;
+	private static final int HEADER_M = 2;
+	private static final int HEADER_ARROW = 3;
+	private static final int HEADER_SIZE = 4;
+	private static final int PAYLOAD = 5;
+	private static final int CHECKSUM = 6;
+
+	private final byte[] mPayload = new byte[Msp.MAX_PAYLOAD];
+	private int mState = IDLE;
+	private boolean mError;
+	private int mSize;
+	private int mCmd;
+	private int mOffset;
+	private int mChecksum;
+
+	private long mMessages = 0;
+	private long mChecksumErrors = 0;
+
+	/**
+	 * Feed a chunk of received bytes.
+	 * @param data  The received bytes
+	 * @param offset  Index of the first byte to consume
+	 * @param length  Number of bytes to consume
+	 * @param listener  Receives the completed messages
+	 * @return The number of valid messages completed by this chunk
+	 */
+	public int parse(byte[] data, int offset, int length, Listener listener) {
+		int completed = 0;
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			int b = data[i] & 0xFF;
+			switch (mState) {
+			case IDLE:
+				if (b == '$') mState = HEADER_START;
+				break;
+			case HEADER_START:
+				mState = b == 'M' ? HEADER_M : IDLE;
+				break;
+			case HEADER_M:
+				if (b == '>' || b == '!') {
+					mError = b == '!';
+					mState = HEADER_ARROW;
+				} else {
+					mState = IDLE;
+				}
+				break;
+			case HEADER_ARROW:
+				mSize = b;
+				mChecksum = b;
+				mState = HEADER_SIZE;
+				break;
+			case HEADER_SIZE:
+				mCmd = b;
+				mChecksum ^= b;
+				mOffset = 0;
+				mState = mSize > 0 ? PAYLOAD : CHECKSUM;
+				break;
+			case PAYLOAD:
+				mPayload[mOffset++] = (byte) b;
+				mChecksum ^= b;
+				if (mOffset == mSize) mState = CHECKSUM;
+				break;
+			case CHECKSUM:
+				if (mChecksum == b) {
+					mMessages++;
+					if (mError) {
+						listener.onError(mCmd);
+					} else {
+						listener.onMessage(mCmd, mPayload, mSize);
+						completed++;
+					}
+				} else {
+					mChecksumErrors++;
+				}
+				mState = IDLE;
+				break;
+			}
+		}
+		return completed;
+	}
+
+	/**
+	 * Drop a partially received message.
+	 */
+	public void reset() {
+		mState = IDLE;
+	}
+
+	/**
+	 * Return true if a message has been started but not completed. */
+	public boolean isPartial() {
+		return mState != IDLE;
+	}
+
+	/**
+	 * Return the number of messages with a valid checksum. */
+	public long getMessageCount() {
+		return mMessages;
+	}
+
+	/**
+	 * Return the number of messages dropped because of a bad checksum. */
+	public long getChecksumErrorCount() {
+		return mChecksumErrors;
+	}
+}
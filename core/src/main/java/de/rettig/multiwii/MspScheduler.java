@@ -0,0 +1,218 @@
+package de.rettig.multiwii;
+
+/**
+ * Polls each MSP message at its own rate.
+ *
+ * Every registered command has a rate and a priority. A command is due once
+ * its period has passed since it was last requested and its previous request
+ * has been answered or timed out. At most {@link #setMaxInFlight(int)}
+ * requests are outstanding; when more commands are due, those with the
+ * highest priority go first and the others wait for the next free slot.
+ * Requests are preallocated, so polling does not allocate.
+ *
+ * A reply is matched to the request of its own command, whose send time is
+ * returned and reported to an optional {@link RequestTracker}, as is every
+ * request that timed out or was refused.
+ */
+public class MspScheduler {
+
+	// Upper bound for the number of registered commands
+	private static final int MAX_COMMANDS = 16;
+
+	private final PollScheduler.Sender mSender;
+	private final RequestTracker mTracker;
+	private final int[] mCmd = new int[MAX_COMMANDS];
+	private final byte[][] mRequest = new byte[MAX_COMMANDS][];
+	private final long[] mPeriod = new long[MAX_COMMANDS];
+	private final int[] mPriority = new int[MAX_COMMANDS];
+	private final long[] mLastSent = new long[MAX_COMMANDS];
+	private final boolean[] mPending = new boolean[MAX_COMMANDS];
+	private int mCount = 0;
+
+	private int mMaxInFlight = 2;
+	private int mInFlight = 0;
+	private long mTimeout = 500 * 1000000L;
+	private boolean mRunning = false;
+
+	private long mRequests = 0;
+	private long mTimeouts = 0;
+
+	/**
+	 * Constructor.
+	 * @param sender  Used to write the requests
+	 * @param tracker  Told about every reply and lost request, may be null
+	 */
+	public MspScheduler(PollScheduler.Sender sender, RequestTracker tracker) {
+		mSender = sender;
+		mTracker = tracker;
+	}
+
+	/**
+	 * Set how often a command is polled.
+	 * @param cmd  One of the MSP commands in {@link Msp}
+	 * @param hz  Requests per second, 0 to stop polling the command
+	 * @param priority  Commands with a higher priority are sent first
+	 */
+	public synchronized void setRate(int cmd, float hz, int priority) {
+		int i = indexOf(cmd);
+		if (i < 0) {
+			if (hz <= 0) return;
+			if (mCount == MAX_COMMANDS) {
+				throw new IllegalStateException("too many commands");
+			}
+			i = mCount++;
+			mCmd[i] = cmd;
+			mRequest[i] = Msp.request(cmd);
+			mLastSent[i] = System.nanoTime() - Long.MAX_VALUE / 2;
+		}
+		mPeriod[i] = hz > 0 ? (long) (1000000000L / hz) : -1;
+		mPriority[i] = priority;
+	}
+
+	/**
+	 * Set the number of requests that may be outstanding at the same time. */
+	public synchronized void setMaxInFlight(int maxInFlight) {
+		mMaxInFlight = Math.max(1, maxInFlight);
+	}
+
+	/**
+	 * Set the time after which a request is considered lost.
+	 * @param millis  Timeout in milliseconds
+	 */
+	public synchronized void setTimeout(long millis) {
+		mTimeout = millis * 1000000L;
+	}
+
+	/**
+	 * Start polling.
+	 */
+	public void start() {
+		synchronized (this) {
+			mRunning = true;
+			clearPending();
+		}
+		onTick();
+	}
+
+	/**
+	 * Stop polling. Outstanding requests are forgotten.
+	 */
+	public synchronized void stop() {
+		mRunning = false;
+		clearPending();
+	}
+
+	/**
+	 * Report a reply to a command and send the commands that are due now.
+	 * @param cmd  The command that was answered
+	 * @return The System.nanoTime() the answered request was sent, 0 if none was outstanding
+	 */
+	public long onResponse(int cmd) {
+		return answer(cmd, true);
+	}
+
+	/**
+	 * Report that the copter refused a command and send the commands that
+	 * are due now. The request counts as unanswered.
+	 * @param cmd  The refused command
+	 */
+	public void onError(int cmd) {
+		answer(cmd, false);
+	}
+
+	private long answer(int cmd, boolean replied) {
+		long due;
+		long sent = 0;
+		synchronized (this) {
+			long now = System.nanoTime();
+			int i = indexOf(cmd);
+			if (i >= 0 && mPending[i]) {
+				mPending[i] = false;
+				mInFlight--;
+				if (replied) {
+					sent = mLastSent[i];
+					if (mTracker != null) mTracker.onReply(sent, now);
+				} else if (mTracker != null) {
+					mTracker.onUnanswered();
+				}
+			}
+			due = collect(now);
+		}
+		send(due);
+		return sent;
+	}
+
+	/**
+	 * Give up requests older than the timeout and send the commands that are
+	 * due now. Must be called regularly, at least as often as the fastest
+	 * configured rate.
+	 */
+	public void onTick() {
+		long due;
+		synchronized (this) {
+			long now = System.nanoTime();
+			for (int i = 0; i < mCount; i++) {
+				if (mPending[i] && now - mLastSent[i] >= mTimeout) {
+					mPending[i] = false;
+					mInFlight--;
+					mTimeouts++;
+					if (mTracker != null) mTracker.onUnanswered();
+				}
+			}
+			due = collect(now);
+		}
+		send(due);
+	}
+
+	/**
+	 * Return the number of requests sent since creation. */
+	public synchronized long getRequestCount() {
+		return mRequests;
+	}
+
+	/**
+	 * Return the number of requests that timed out since creation. */
+	public synchronized long getTimeoutCount() {
+		return mTimeouts;
+	}
+
+	private int indexOf(int cmd) {
+		for (int i = 0; i < mCount; i++) {
+			if (mCmd[i] == cmd) return i;
+		}
+		return -1;
+	}
+
+	private void clearPending() {
+		for (int i = 0; i < mCount; i++) {
+			mPending[i] = false;
+		}
+		mInFlight = 0;
+	}
+
+	// Mark the due commands as sent, in priority order, and return them as a bit mask
+	private long collect(long now) {
+		long due = 0;
+		while (mRunning && mInFlight < mMaxInFlight) {
+			int best = -1;
+			for (int i = 0; i < mCount; i++) {
+				if (mPending[i] || mPeriod[i] < 0) continue;
+				if (now - mLastSent[i] < mPeriod[i]) continue;
+				if (best < 0 || mPriority[i] > mPriority[best]) best = i;
+			}
+			if (best < 0) break;
+			due |= 1L << best;
+			mPending[best] = true;
+			mLastSent[best] = now;
+			mInFlight++;
+			mRequests++;
+		}
+		return due;
+	}
+
+	private void send(long due) {
+		for (int i = 0; due != 0; i++, due >>>= 1) {
+			if ((due & 1) != 0) mSender.send(mRequest[i]);
+		}
+	}
+}
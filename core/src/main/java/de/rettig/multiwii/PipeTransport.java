@@ -0,0 +1,64 @@
+package de.rettig.multiwii;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+
+/**
+ * An in-memory {@link Transport}. {@link #createPair(String)} returns two
+ * ends that are connected to each other, e.g. one for the app and one for a
+ * {@link SimulatedMultiWii}.
+ */
+public class PipeTransport implements Transport {
+
+	private final Pipe.SourceChannel mSource;
+	private final Pipe.SinkChannel mSink;
+	private final InputStream mIn;
+	private final OutputStream mOut;
+	private final String mName;
+
+	private PipeTransport(Pipe.SourceChannel source, Pipe.SinkChannel sink, String name) {
+		mSource = source;
+		mSink = sink;
+		mIn = Channels.newInputStream(source);
+		mOut = Channels.newOutputStream(sink);
+		mName = name;
+	}
+
+	/**
+	 * Return two connected transports. What is written to one of them can be
+	 * read from the other.
+	 * @param name  Name of the connection
+	 */
+	public static PipeTransport[] createPair(String name) throws IOException {
+		Pipe a = Pipe.open();
+		Pipe b = Pipe.open();
+		return new PipeTransport[] {
+				new PipeTransport(a.source(), b.sink(), name),
+				new PipeTransport(b.source(), a.sink(), name)
+		};
+	}
+
+	public void connect() {
+		// Connected from the start
+	}
+
+	public InputStream getInputStream() {
+		return mIn;
+	}
+
+	public OutputStream getOutputStream() {
+		return mOut;
+	}
+
+	public void close() throws IOException {
+		mSource.close();
+		mSink.close();
+	}
+
+	public String getName() {
+		return mName;
+	}
+}
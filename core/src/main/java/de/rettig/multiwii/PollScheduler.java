@@ -0,0 +1,169 @@
+package de.rettig.multiwii;
+
+/**
+ * Requests status frames as fast as the link delivers them.
+ *
+ * Instead of polling at a fixed rate, the scheduler keeps a window of
+ * outstanding requests: whenever a frame arrives the next request is sent,
+ * and a request that got no answer within the timeout is given up and
+ * replaced by a new one. With a window of one this is plain request/response;
+ * a larger window hides the link latency at the cost of a few requests
+ * queued on the flight controller.
+ *
+ * Every reply is matched to the oldest outstanding request, whose send time
+ * is returned and reported to an optional {@link RequestTracker}, as is
+ * every request given up.
+ */
+public class PollScheduler {
+
+	/**
+	 * Sends a request to the copter. Called outside of any lock held by the
+	 * scheduler.
+	 */
+	public interface Sender {
+		void send(byte[] request);
+	}
+
+	/** The request answered by a status frame. */
+	public static final byte[] STATUS_REQUEST = { 'M' };
+
+	// Upper bound for the window, sizes the timestamp ring
+	private static final int MAX_WINDOW = 16;
+
+	private final Sender mSender;
+	private final byte[] mRequest;
+	private final RequestTracker mTracker;
+	// Send times of the outstanding requests, oldest at mHead
+	private final long[] mSentAt = new long[MAX_WINDOW];
+	private int mHead = 0;
+	private int mOutstanding = 0;
+	private int mWindow = 2;
+	private long mTimeout = 500 * 1000000L;
+	private boolean mRunning = false;
+
+	private long mRequests = 0;
+	private long mTimeouts = 0;
+
+	/**
+	 * Constructor.
+	 * @param sender  Used to write the requests
+	 * @param request  The request to send, e.g. {@link #STATUS_REQUEST}
+	 * @param tracker  Told about every reply and lost request, may be null
+	 */
+	public PollScheduler(Sender sender, byte[] request, RequestTracker tracker) {
+		mSender = sender;
+		mRequest = request;
+		mTracker = tracker;
+	}
+
+	/**
+	 * Set the number of requests that may be outstanding at the same time.
+	 * @param window  Between 1 and 16
+	 */
+	public synchronized void setWindow(int window) {
+		if (window < 1 || window > MAX_WINDOW) {
+			throw new IllegalArgumentException("window must be between 1 and " + MAX_WINDOW);
+		}
+		mWindow = window;
+	}
+
+	/**
+	 * Set the time after which a request is considered lost and retried.
+	 * @param millis  Timeout in milliseconds
+	 */
+	public synchronized void setTimeout(long millis) {
+		mTimeout = millis * 1000000L;
+	}
+
+	/**
+	 * Start polling: fill the window with requests.
+	 */
+	public void start() {
+		int n;
+		synchronized (this) {
+			mRunning = true;
+			mOutstanding = 0;
+			n = fill(System.nanoTime());
+		}
+		send(n);
+	}
+
+	/**
+	 * Stop polling. Outstanding requests are forgotten.
+	 */
+	public synchronized void stop() {
+		mRunning = false;
+		mOutstanding = 0;
+	}
+
+	/**
+	 * Report that a frame was received, which answers the oldest outstanding
+	 * request, and send the next one.
+	 * @return The System.nanoTime() the answered request was sent, 0 if none was outstanding
+	 */
+	public long onFrame() {
+		int n;
+		long sent = 0;
+		synchronized (this) {
+			long now = System.nanoTime();
+			if (mOutstanding > 0) {
+				sent = mSentAt[mHead];
+				mHead = (mHead + 1) % MAX_WINDOW;
+				mOutstanding--;
+				if (mTracker != null) mTracker.onReply(sent, now);
+			}
+			n = fill(now);
+		}
+		send(n);
+		return sent;
+	}
+
+	/**
+	 * Give up requests that are older than the timeout and send replacements.
+	 * Must be called regularly, at least a few times per timeout.
+	 */
+	public void onTick() {
+		int n;
+		synchronized (this) {
+			long now = System.nanoTime();
+			while (mOutstanding > 0 && now - mSentAt[mHead] >= mTimeout) {
+				mHead = (mHead + 1) % MAX_WINDOW;
+				mOutstanding--;
+				mTimeouts++;
+				if (mTracker != null) mTracker.onUnanswered();
+			}
+			n = fill(now);
+		}
+		send(n);
+	}
+
+	/**
+	 * Return the number of requests sent since creation. */
+	public synchronized long getRequestCount() {
+		return mRequests;
+	}
+
+	/**
+	 * Return the number of requests that timed out since creation. */
+	public synchronized long getTimeoutCount() {
+		return mTimeouts;
+	}
+
+	// Account for the requests needed to fill the window, return their number
+	private int fill(long now) {
+		int n = 0;
+		while (mRunning && mOutstanding < mWindow) {
+			mSentAt[(mHead + mOutstanding) % MAX_WINDOW] = now;
+			mOutstanding++;
+			mRequests++;
+			n++;
+		}
+		return n;
+	}
+
+	private void send(int n) {
+		for (int i = 0; i < n; i++) {
+			mSender.send(mRequest);
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package de.rettig.multiwii;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a session written by {@link FlightRecorder} back into the same
+ * decoding path the live link uses. The chunks are delivered at their
+ * original pace, faster by a given factor, or as fast as possible. Pacing
+ * starts with the first record replayed, so a session whose first segments
+ * were deleted by the recorder's rollover plays without an initial pause.
+ *
+ * Running the class directly decodes a recorded session as fast as possible
+ * and prints the throughput:
+ * <pre>java de.rettig.multiwii.ReplaySource &lt;directory&gt; [session] [msp]</pre>
+ */
+public class ReplaySource {
+
+	/**
+	 * Receives the replayed chunks.
+	 */
+	public interface Sink {
+		/**
+		 * Called for every recorded chunk, on the thread running
+		 * {@link ReplaySource#play}.
+		 * @param data  The chunk, only valid during the call
+		 * @param offset  Index of the first byte
+		 * @param length  Number of bytes
+		 */
+		void onChunk(byte[] data, int offset, int length);
+	}
+
+	/** Speed factor to replay without any pauses. */
+	public static final float AS_FAST_AS_POSSIBLE = 0;
+
+	private final File[] mSegments;
+	private final byte[] mChunk = new byte[FlightRecorder.MAX_RECORD_LENGTH];
+	private volatile boolean mStopped;
+
+	private long mRecords;
+	private long mBytes;
+	private long mElapsed;
+	// Recorded time of the first record replayed, the base of the pacing
+	private long mFirstTime;
+
+	/**
+	 * Constructor.
+	 * @param directory  Directory holding the segment files
+	 * @param sessionName  Base name of the session, see {@link FlightRecorder#getSessionName()}
+	 */
+	public ReplaySource(File directory, String sessionName) {
+		mSegments = findSegments(directory, sessionName);
+	}
+
+	/**
+	 * Return the segment files of a session in recording order.
+	 */
+	public static File[] findSegments(File directory, String sessionName) {
+		File[] files = directory.listFiles();
+		if (files == null) return new File[0];
+		int n = 0;
+		for (File f : files) {
+			String name = f.getName();
+			if (name.startsWith(sessionName + "-") && name.endsWith(FlightRecorder.EXTENSION)) {
+				files[n++] = f;
+			}
+		}
+		File[] segments = new File[n];
+		System.arraycopy(files, 0, segments, 0, n);
+		// The index is zero padded, so names sort in recording order
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	/**
+	 * Return the name of the most recent session in a directory, or null if
+	 * there is none.
+	 */
+	public static String findLatestSession(File directory) {
+		String[] names = directory.list();
+		String latest = null;
+		if (names == null) return null;
+		for (String name : names) {
+			if (!name.startsWith("flight-") || !name.endsWith(FlightRecorder.EXTENSION)) continue;
+			String session = name.substring(0, name.lastIndexOf('-'));
+			if (latest == null || session.compareTo(latest) > 0) latest = session;
+		}
+		return latest;
+	}
+
+	/**
+	 * Replay the session on the calling thread.
+	 * @param sink  Receives the chunks
+	 * @param speed  Factor relative to real time, or {@link #AS_FAST_AS_POSSIBLE}
+	 * @throws IOException if a segment cannot be read
+	 */
+	public void play(Sink sink, float speed) throws IOException {
+		mStopped = false;
+		mRecords = 0;
+		mBytes = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < mSegments.length && !mStopped; i++) {
+			playSegment(mSegments[i], sink, speed, start);
+		}
+		mElapsed = System.nanoTime() - start;
+	}
+
+	/**
+	 * Stop a running replay. May be called from any thread.
+	 */
+	public void stop() {
+		mStopped = true;
+	}
+
+	/**
+	 * Return the number of segment files in the session. */
+	public int getSegmentCount() {
+		return mSegments.length;
+	}
+
+	/**
+	 * Return the number of chunks delivered by the last replay. */
+	public long getRecordCount() {
+		return mRecords;
+	}
+
+	/**
+	 * Return the number of bytes delivered by the last replay. */
+	public long getByteCount() {
+		return mBytes;
+	}
+
+	/**
+	 * Return the duration of the last replay in ns. */
+	public long getElapsedNanos() {
+		return mElapsed;
+	}
+
+	private void playSegment(File file, Sink sink, float speed, long start) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			MappedByteBuffer segment = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			segment.order(ByteOrder.LITTLE_ENDIAN);
+			if (segment.limit() < FlightRecorder.HEADER_SIZE
+					|| segment.getInt(FlightRecorder.H_MAGIC) != FlightRecorder.MAGIC) {
+				throw new IOException("not a flight recording: " + file);
+			}
+			segment.position(FlightRecorder.HEADER_SIZE);
+			while (!mStopped && segment.remaining() >= FlightRecorder.RECORD_HEADER) {
+				int length = segment.getShort() & 0xFFFF;
+				if (length == 0 || length > mChunk.length) break;
+				long time = segment.getLong();
+				segment.get(mChunk, 0, length);
+				if (mRecords == 0) mFirstTime = time;
+				if (speed > 0) {
+					long wait = start + (long) ((time - mFirstTime) / speed) - System.nanoTime();
+					if (wait > 0) LockSupport.parkNanos(wait);
+				}
+				sink.onChunk(mChunk, 0, length);
+				mRecords++;
+				mBytes += length;
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("usage: ReplaySource <directory> [session] [msp]");
+			System.exit(1);
+		}
+		File dir = new File(args[0]);
+		String session = args.length > 1 ? args[1] : findLatestSession(dir);
+		if (session == null) {
+			System.err.println("no recording in " + dir);
+			System.exit(1);
+		}
+		final StreamDecoder decoder = args.length > 2 && args[2].equals("msp")
+				? new MspDecoder(null) : new FrameDecoder();
+		final Copter copter = new Copter();
+		final long[] frames = new long[1];
+		ReplaySource replay = new ReplaySource(dir, session);
+		replay.play(new Sink() {
+			public void onChunk(byte[] data, int offset, int length) {
+				frames[0] += decoder.decode(data, offset, length, copter);
+			}
+		}, AS_FAST_AS_POSSIBLE);
+		double seconds = replay.getElapsedNanos() / 1e9;
+		System.out.println(session + ": " + replay.getSegmentCount() + " segments, "
+				+ replay.getRecordCount() + " chunks, " + replay.getByteCount() + " bytes, "
+				+ frames[0] + " frames in " + seconds + " s");
+		System.out.println((long) (frames[0] / seconds) + " frames/s, "
+				+ (long) (replay.getByteCount() / seconds / 1024 / 1024) + " MB/s");
+	}
+}
@@ -0,0 +1,63 @@
+package de.rettig.multiwii;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records how long the round trips of the requests sent to the copter took
+ * and how long it took until the answer was on screen.
+ *
+ * The {@link PollScheduler} and {@link MspScheduler} keep the send time of
+ * every outstanding request and match each reply to its own request, so a
+ * request that timed out or was refused cannot shift the times of later
+ * replies. They report matched replies and lost requests here; only the
+ * scheduler's timeout decides when a request counts as unanswered.
+ */
+public class RequestTracker {
+
+	private final LatencyHistogram mRoundTrip = new LatencyHistogram();
+	private final LatencyHistogram mRequestToRender = new LatencyHistogram();
+	private final AtomicLong mUnanswered = new AtomicLong();
+
+	/**
+	 * Record a reply matched with its request.
+	 * @param sent  The System.nanoTime() the request was sent
+	 * @param now  The current System.nanoTime()
+	 */
+	public void onReply(long sent, long now) {
+		mRoundTrip.record(now - sent);
+	}
+
+	/**
+	 * Record that a request timed out or was refused by the copter.
+	 */
+	public void onUnanswered() {
+		mUnanswered.incrementAndGet();
+	}
+
+	/**
+	 * Record that a state was rendered.
+	 * @param requestTime  Send time of the request the state answered, 0 if not known
+	 * @param now  The current System.nanoTime()
+	 */
+	public void onRender(long requestTime, long now) {
+		if (requestTime != 0) mRequestToRender.record(now - requestTime);
+	}
+
+	/**
+	 * Return the histogram of request to reply times. */
+	public LatencyHistogram getRoundTrip() {
+		return mRoundTrip;
+	}
+
+	/**
+	 * Return the histogram of request to render times. */
+	public LatencyHistogram getRequestToRender() {
+		return mRequestToRender;
+	}
+
+	/**
+	 * Return the number of requests that got no answer. */
+	public long getUnansweredCount() {
+		return mUnanswered.get();
+	}
+}
@@ -0,0 +1,190 @@
+package de.rettig.multiwii;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes for any number of connections and gives them a regular tick.
+ * Every connection is a {@link Link} with its own {@link WriteQueue}.
+ *
+ * The thread running the writer never writes itself, so a connection
+ * stalled in OutputStream.write() cannot hold up the others or their
+ * ticks. It sleeps until a message is queued or a tick is due, hands every
+ * link with queued messages to a pool of writer threads and ticks every
+ * link, e.g. to drive its poll timeouts. A link is written by at most one
+ * pool thread at a time, which writes everything queued in batches and
+ * then goes back to the pool. While the links keep up, one or two pool
+ * threads serve all of them; a stalled link only blocks the thread
+ * writing it, and idle pool threads end after a while. The time spent
+ * writing is reported to each link so a congested one stands out.
+ */
+public class SharedWriter implements Runnable {
+
+	/**
+	 * A connection served by the writer. Only one thread at a time calls
+	 * the write methods; {@link #onTick(long)} is called from the thread
+	 * running the writer.
+	 */
+	public interface Link {
+		/** Return the queue of messages to write. */
+		WriteQueue getWriteQueue();
+
+		/** Return the stream the messages are written to. */
+		OutputStream getOutputStream();
+
+		/**
+		 * Called after a batch was written.
+		 * @param messages  Number of messages in the batch
+		 * @param bytes  Number of bytes written
+		 * @param start  System.nanoTime() before the write
+		 * @param end  System.nanoTime() after the write
+		 */
+		void onWritten(int messages, int bytes, long start, long end);
+
+		/**
+		 * Called when writing failed. The link is removed from the writer.
+		 */
+		void onWriteFailed(IOException e);
+
+		/**
+		 * Called at least every tick interval. Must not block.
+		 * @param now  The current System.nanoTime()
+		 */
+		void onTick(long now);
+	}
+
+	// Pool threads without a link to write end after this time
+	private static final long IDLE_SECONDS = 30;
+
+	// A link with its batch buffer; runs on a pool thread to write the link
+	private final class Writing implements Runnable {
+		final Link mLink;
+		final byte[] mBatch;
+		// Set while the link is handed to or written by a pool thread
+		final AtomicBoolean mBusy = new AtomicBoolean();
+
+		Writing(Link link) {
+			mLink = link;
+			mBatch = new byte[mBatchSize];
+		}
+
+		public void run() {
+			WriteQueue queue = mLink.getWriteQueue();
+			while (true) {
+				int length = queue.poll(mBatch);
+				if (length == 0) {
+					mBusy.set(false);
+					// A message queued since the poll finds the link busy, so look again
+					if (queue.getDepth() == 0 || !mBusy.compareAndSet(false, true)) return;
+					continue;
+				}
+				long start = System.nanoTime();
+				try {
+					mLink.getOutputStream().write(mBatch, 0, length);
+				} catch (IOException e) {
+					mWritings.remove(this);
+					mLink.onWriteFailed(e);
+					return;
+				}
+				mLink.onWritten(queue.getLastBatchMessages(), length, start, System.nanoTime());
+			}
+		}
+	}
+
+	private final CopyOnWriteArrayList<Writing> mWritings = new CopyOnWriteArrayList<Writing>();
+	private final int mBatchSize;
+	private final long mTickInterval;
+	private final ExecutorService mPool;
+	private volatile Thread mThread;
+	private volatile boolean mStopped;
+
+	/**
+	 * Constructor.
+	 * @param batchSize  Size of the batch buffers, at least the batch size of the link queues
+	 * @param tickMillis  Interval of {@link Link#onTick(long)} in ms
+	 */
+	public SharedWriter(int batchSize, long tickMillis) {
+		mBatchSize = batchSize;
+		mTickInterval = tickMillis * 1000000L;
+		final AtomicInteger threads = new AtomicInteger();
+		mPool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, IDLE_SECONDS, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						return new Thread(r, "SharedWriter-" + threads.incrementAndGet());
+					}
+				});
+	}
+
+	/**
+	 * Start serving a link. Its queue wakes the writer from now on.
+	 */
+	public void add(Link link) {
+		mWritings.add(new Writing(link));
+		Thread thread = mThread;
+		if (thread != null) link.getWriteQueue().setConsumer(thread);
+	}
+
+	/**
+	 * Stop serving a link. Messages still queued are not written.
+	 */
+	public void remove(Link link) {
+		for (Writing w : mWritings) {
+			if (w.mLink == link) mWritings.remove(w);
+		}
+	}
+
+	/**
+	 * Return the number of links served. */
+	public int getLinkCount() {
+		return mWritings.size();
+	}
+
+	/**
+	 * Make {@link #run()} return soon. Writes in progress are finished by
+	 * their pool threads.
+	 */
+	public void stop() {
+		mStopped = true;
+		Thread thread = mThread;
+		if (thread != null) LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Hand out writes and tick until {@link #stop()} is called.
+	 */
+	public void run() {
+		Thread self = Thread.currentThread();
+		mThread = self;
+		for (Writing w : mWritings) {
+			w.mLink.getWriteQueue().setConsumer(self);
+		}
+		long nextTick = System.nanoTime();
+		while (!mStopped) {
+			for (Writing w : mWritings) {
+				if (w.mLink.getWriteQueue().getDepth() > 0 && w.mBusy.compareAndSet(false, true)) {
+					mPool.execute(w);
+				}
+			}
+			long now = System.nanoTime();
+			if (now - nextTick >= 0) {
+				for (Writing w : mWritings) {
+					w.mLink.onTick(now);
+				}
+				nextTick = now + mTickInterval;
+			}
+			// Queues unpark the writer, so a message queued since the pass ends the wait at once
+			LockSupport.parkNanos(this, nextTick - now);
+		}
+		mPool.shutdown();
+		mThread = null;
+	}
+}
@@ -0,0 +1,343 @@
+package de.rettig.multiwii;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a flight controller on the other end of a {@link Transport}. It
+ * answers "M" requests with status frames and MSP requests with MSP replies,
+ * describing a copter that gently rolls, pitches and turns, with a little
+ * sensor noise. Replies can be limited to a maximum rate to mimic a slow
+ * link.
+ *
+ * Running the class directly serves simulated copters over TCP:
+ * <pre>java de.rettig.multiwii.SimulatedMultiWii [port] [replies per second]</pre>
+ */
+public class SimulatedMultiWii implements Runnable {
+
+	/** TCP port the simulator listens on by default. */
+	public static final int DEFAULT_PORT = 5760;
+	/** Firmware version reported in the frames. */
+	public static final int VERSION = 18;
+
+	// Raw accelerometer value of 1 g
+	private static final int ACC_1G = 256;
+	// Raw gyro units per degree per second
+	private static final float GYRO_SCALE = 3.6f;
+
+	// States of the MSP request parser
+	private static final int IDLE = 0;
+	private static final int HEADER_M = 1;
+	private static final int HEADER_ARROW = 2;
+	private static final int HEADER_SIZE = 3;
+	private static final int PAYLOAD = 4;
+	private static final int CHECKSUM = 5;
+
+	private final Transport mTransport;
+	private final long mReplyInterval;
+	private final Random mRandom;
+	private final long mStart = System.nanoTime();
+
+	private final byte[] mStatus = new byte[FrameDecoder.FRAME_LENGTH + 1];
+	private final byte[] mPayload = new byte[Msp.MAX_PAYLOAD];
+	private final byte[] mReply = new byte[Msp.MAX_PAYLOAD + Msp.OVERHEAD];
+
+	private int mState = IDLE;
+	private int mSize;
+	private int mCmd;
+	private int mOffset;
+
+	private long mNextReply;
+	private volatile boolean mStopped;
+	private volatile long mReplies;
+
+	// Simulated state, updated before each reply
+	private float mRoll;
+	private float mPitch;
+	private float mHeading;
+	private float mRollRate;
+	private float mPitchRate;
+	private float mYawRate;
+	private float mAltitude;
+
+	/**
+	 * Constructor.
+	 * @param transport  The device side of the connection
+	 * @param maxRate  Highest number of replies per second, 0 for no limit
+	 * @param seed  Seed of the sensor noise
+	 */
+	public SimulatedMultiWii(Transport transport, float maxRate, long seed) {
+		mTransport = transport;
+		mReplyInterval = maxRate > 0 ? (long) (1000000000L / maxRate) : 0;
+		mRandom = new Random(seed);
+	}
+
+	/**
+	 * Answer requests until the connection is closed or {@link #stop()} is
+	 * called.
+	 */
+	public void run() {
+		byte[] buffer = new byte[256];
+		try {
+			mTransport.connect();
+			InputStream in = mTransport.getInputStream();
+			OutputStream out = mTransport.getOutputStream();
+			while (!mStopped) {
+				int bytes = in.read(buffer);
+				if (bytes < 0) break;
+				for (int i = 0; i < bytes; i++) {
+					onRequestByte(buffer[i] & 0xFF, out);
+				}
+			}
+		} catch (IOException e) {
+			// The app went away
+		} finally {
+			try {
+				mTransport.close();
+			} catch (IOException e) {
+				// Closing anyway
+			}
+		}
+	}
+
+	/**
+	 * Stop answering and close the connection.
+	 */
+	public void stop() {
+		mStopped = true;
+		try {
+			mTransport.close();
+		} catch (IOException e) {
+			// Closing anyway
+		}
+	}
+
+	/**
+	 * Return the number of replies sent. */
+	public long getReplyCount() {
+		return mReplies;
+	}
+
+	private void onRequestByte(int b, OutputStream out) throws IOException {
+		switch (mState) {
+		case IDLE:
+			if (b == '$') {
+				mState = HEADER_M;
+			} else if (b == 'M') {
+				sendStatusFrame(out);
+			}
+			break;
+		case HEADER_M:
+			mState = b == 'M' ? HEADER_ARROW : IDLE;
+			break;
+		case HEADER_ARROW:
+			mState = b == '<' ? HEADER_SIZE : IDLE;
+			break;
+		case HEADER_SIZE:
+			mSize = b;
+			mOffset = -1;
+			mState = PAYLOAD;
+			break;
+		case PAYLOAD:
+			// The command comes first, then the request payload, which is ignored
+			if (mOffset < 0) mCmd = b;
+			if (++mOffset == mSize) mState = CHECKSUM;
+			break;
+		case CHECKSUM:
+			sendMspReply(mCmd, out);
+			mState = IDLE;
+			break;
+		}
+	}
+
+	private void sendStatusFrame(OutputStream out) throws IOException {
+		pace();
+		byte[] f = mStatus;
+		f[0] = 'M';
+		f[1] = VERSION;
+		put16(f, 2, acc(0));
+		put16(f, 4, acc(1));
+		put16(f, 6, acc(2));
+		put16(f, 8, gyro(0));
+		put16(f, 10, gyro(1));
+		put16(f, 12, gyro(2));
+		// The app divides the mag values by 3
+		put16(f, 14, 3 * mag(0));
+		put16(f, 16, 3 * mag(1));
+		put16(f, 18, 3 * mag(2));
+		put16(f, 20, (int) (mAltitude * 10));
+		put16(f, 22, (int) mHeading);
+		for (int i = 0; i < 8; i++) {
+			put16(f, 24 + 2 * i, 1500);
+			put16(f, 40 + 2 * i, motor(i));
+			put16(f, 56 + 2 * i, rc(i));
+		}
+		put16(f, 74, cycleTime());
+		put16(f, 78, (int) (mRoll * 10));
+		put16(f, 80, (int) (mPitch * 10));
+		f[FrameDecoder.FRAME_LENGTH] = FrameDecoder.DELIMITER;
+		out.write(f);
+		mReplies++;
+	}
+
+	private void sendMspReply(int cmd, OutputStream out) throws IOException {
+		pace();
+		byte[] p = mPayload;
+		int size;
+		switch (cmd) {
+		case Msp.MSP_IDENT:
+			p[0] = VERSION;
+			p[1] = 3; // quad X
+			p[2] = 0;
+			put32(p, 3, 0);
+			size = 7;
+			break;
+		case Msp.MSP_STATUS:
+			put16(p, 0, cycleTime());
+			put16(p, 2, 0);
+			put16(p, 4, 0x0F);
+			put32(p, 6, 1);
+			size = 10;
+			break;
+		case Msp.MSP_RAW_IMU:
+			for (int i = 0; i < 3; i++) {
+				put16(p, 2 * i, acc(i));
+				put16(p, 6 + 2 * i, gyro(i));
+				put16(p, 12 + 2 * i, 3 * mag(i));
+			}
+			size = 18;
+			break;
+		case Msp.MSP_SERVO:
+		case Msp.MSP_MOTOR:
+		case Msp.MSP_RC:
+			for (int i = 0; i < 8; i++) {
+				put16(p, 2 * i, cmd == Msp.MSP_MOTOR ? motor(i) : cmd == Msp.MSP_RC ? rc(i) : 1500);
+			}
+			size = 16;
+			break;
+		case Msp.MSP_ATTITUDE:
+			put16(p, 0, (int) (mRoll * 10));
+			put16(p, 2, (int) (mPitch * 10));
+			put16(p, 4, (int) mHeading);
+			size = 6;
+			break;
+		case Msp.MSP_ALTITUDE:
+			put32(p, 0, (int) (mAltitude * 100));
+			put16(p, 4, 0);
+			size = 6;
+			break;
+		default:
+			size = -1;
+		}
+		int length;
+		if (size < 0) {
+			length = Msp.encode(cmd, p, 0, mReply, 0);
+			mReply[2] = '!';
+		} else {
+			length = Msp.encode(cmd, p, size, mReply, 0);
+			mReply[2] = '>';
+		}
+		out.write(mReply, 0, length);
+		mReplies++;
+	}
+
+	// Wait for the next reply slot and advance the simulated flight
+	private void pace() {
+		long now = System.nanoTime();
+		if (mReplyInterval > 0) {
+			if (mNextReply > now) {
+				LockSupport.parkNanos(mNextReply - now);
+				now = mNextReply;
+			}
+			mNextReply = Math.max(mNextReply, now - mReplyInterval) + mReplyInterval;
+		}
+		double t = (now - mStart) / 1e9;
+		mRoll = (float) (25 * Math.sin(2 * Math.PI * t / 4));
+		mPitch = (float) (15 * Math.sin(2 * Math.PI * t / 6.3));
+		mHeading = (float) ((t * 20) % 360 - 180);
+		mRollRate = (float) (25 * 2 * Math.PI / 4 * Math.cos(2 * Math.PI * t / 4));
+		mPitchRate = (float) (15 * 2 * Math.PI / 6.3 * Math.cos(2 * Math.PI * t / 6.3));
+		mYawRate = 20;
+		mAltitude = (float) (10 + 2 * Math.sin(t / 10));
+	}
+
+	private int noise(int amplitude) {
+		return mRandom.nextInt(2 * amplitude + 1) - amplitude;
+	}
+
+	private int acc(int axis) {
+		double roll = Math.toRadians(mRoll);
+		double pitch = Math.toRadians(mPitch);
+		double g;
+		switch (axis) {
+		case 0: g = Math.sin(roll); break;
+		case 1: g = Math.sin(pitch); break;
+		default: g = Math.cos(roll) * Math.cos(pitch);
+		}
+		return (int) (ACC_1G * g) + noise(3);
+	}
+
+	private int gyro(int axis) {
+		float rate = axis == 0 ? mRollRate : axis == 1 ? mPitchRate : mYawRate;
+		return (int) (rate * GYRO_SCALE) + noise(2);
+	}
+
+	private int mag(int axis) {
+		double heading = Math.toRadians(mHeading);
+		switch (axis) {
+		case 0: return (int) (150 * Math.cos(heading)) + noise(2);
+		case 1: return (int) (-150 * Math.sin(heading)) + noise(2);
+		default: return -250 + noise(2);
+		}
+	}
+
+	private int motor(int i) {
+		return i < 4 ? 1400 + (int) (((i & 1) == 0 ? mRoll : -mRoll) * 4) : 1000;
+	}
+
+	private int rc(int i) {
+		switch (i) {
+		case 0: return 1500 + (int) (mRoll * 4);
+		case 1: return 1500 + (int) (mPitch * 4);
+		case 3: return 1450;
+		default: return 1500;
+		}
+	}
+
+	private int cycleTime() {
+		return 2800 + noise(50);
+	}
+
+	private static void put16(byte[] data, int offset, int value) {
+		data[offset] = (byte) value;
+		data[offset + 1] = (byte) (value >> 8);
+	}
+
+	private static void put32(byte[] data, int offset, int value) {
+		data[offset] = (byte) value;
+		data[offset + 1] = (byte) (value >> 8);
+		data[offset + 2] = (byte) (value >> 16);
+		data[offset + 3] = (byte) (value >> 24);
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		float rate = args.length > 1 ? Float.parseFloat(args[1]) : 0;
+		ServerSocket server = new ServerSocket(port);
+		System.out.println("simulated MultiWii listening on port " + port
+				+ (rate > 0 ? ", " + rate + " replies/s" : ""));
+		long seed = 0;
+		while (true) {
+			Socket socket = server.accept();
+			socket.setTcpNoDelay(true);
+			System.out.println("connection from " + socket.getRemoteSocketAddress());
+			new Thread(new SimulatedMultiWii(new TcpTransport(socket), rate, seed++),
+					"SimulatedMultiWii-" + socket.getPort()).start();
+		}
+	}
+}
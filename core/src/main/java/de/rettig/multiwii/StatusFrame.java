@@ -0,0 +1,275 @@
+package de.rettig.multiwii;
+
+/**
+ * Flyweight over a raw status frame. Nothing is copied: the frame stays
+ * where it was received, and a field is only decoded when its getter is
+ * called. Where a field lies and how wide it is comes from the
+ * {@link FrameFormat} the frame was decoded with, so the getters work for
+ * every registered layout. One instance can be moved over any number of
+ * frames with {@link #wrap(FrameFormat, byte[], int)}; the fields are only
+ * looked up again when the layout changes.
+ *
+ * Values are returned as sent by the flight controller, without the
+ * divisors the layout applies for the display, and are 0 if the layout
+ * does not have the field. A field this class has no getter for can still
+ * be read with {@link #getField(int)}.
+ */
+public class StatusFrame {
+
+	/** Number of servo, motor and RC channels. */
+	public static final int CHANNELS = 8;
+	/** Number of PID controllers. */
+	public static final int PID_ITEMS = 8;
+	/** Number of boxes with activation bytes. */
+	public static final int BOXES = 14;
+
+	// Slots of the fields with a getter, in the order of NAMES
+	private static final int VERSION = 0, ACC = 1, GYRO = 4, MAG = 7, ALTITUDE = 10, HEADING = 11;
+	private static final int SERVO = 12, MOTOR = 20, RC = 28, PRESENT = 36, MODE = 37;
+	private static final int CYCLE_TIME = 38, I2C_ERRORS = 39, ANGLE = 40, MULTI_TYPE = 42, PID = 43;
+	private static final int RC_RATE = 67, RC_EXPO = 68, ROLL_PITCH_RATE = 69, YAW_RATE = 70;
+	private static final int DYN_THR_PID = 71, ACTIVATION = 72, GPS_DISTANCE = 100, GPS_DIRECTION = 101;
+	private static final int GPS_NUM_SAT = 102, GPS_FIX = 103, GPS_UPDATE = 104, POWER_METER_SUM = 105;
+	private static final int POWER_TRIGGER = 106, VBAT = 107, BARO_ALTITUDE = 108, SLOTS = 109;
+
+	// Field names in the layout of each slot
+	private static final String[] NAMES = new String[SLOTS];
+	static {
+		int s = 0;
+		NAMES[s++] = "version";
+		for (String name : new String[] { "ax", "ay", "az", "gx", "gy", "gz", "magX", "magY", "magZ" }) {
+			NAMES[s++] = name;
+		}
+		NAMES[s++] = "baro";
+		NAMES[s++] = "head";
+		s = names(s, "servo", CHANNELS);
+		s = names(s, "motor", CHANNELS);
+		s = names(s, "rc", CHANNELS);
+		for (String name : new String[] { "present", "mode", "cycleTime", "i2cErrors", "angleX", "angleY",
+				"multiType" }) {
+			NAMES[s++] = name;
+		}
+		s = names(s, "pid", 3 * PID_ITEMS);
+		for (String name : new String[] { "rcRate", "rcExpo", "rollPitchRate", "yawRate", "dynThrPid" }) {
+			NAMES[s++] = name;
+		}
+		s = names(s, "activation", 2 * BOXES);
+		for (String name : new String[] { "gpsDistance", "gpsDirection", "gpsNumSat", "gpsFix", "gpsUpdate",
+				"powerMeterSum", "powerTrigger", "vbat", "baroAltitude" }) {
+			NAMES[s++] = name;
+		}
+		if (s != SLOTS) throw new AssertionError("slots " + s);
+	}
+
+	private static int names(int s, String name, int count) {
+		for (int i = 0; i < count; i++) {
+			NAMES[s++] = name + i;
+		}
+		return s;
+	}
+
+	private FrameFormat mFormat;
+	private byte[] mData;
+	private int mBase;
+	// Index of each slot's field in mFormat, -1 if it has none
+	private final int[] mFields = new int[SLOTS];
+
+	/**
+	 * Position the flyweight on a frame.
+	 * @param format  Layout of the frame
+	 * @param data  Array holding the frame
+	 * @param offset  Index of the first byte of the frame, the 'M'
+	 * @return This flyweight
+	 */
+	public StatusFrame wrap(FrameFormat format, byte[] data, int offset) {
+		if (format != mFormat) {
+			for (int s = 0; s < SLOTS; s++) {
+				mFields[s] = format.indexOf(NAMES[s]);
+			}
+			mFormat = format;
+		}
+		mData = data;
+		mBase = offset;
+		return this;
+	}
+
+	/**
+	 * Return the layout of the frame. */
+	public FrameFormat getFormat() {
+		return mFormat;
+	}
+
+	/**
+	 * Return any field of the layout, as sent.
+	 * @param field  Index of the field from {@link FrameFormat#indexOf(String)}
+	 */
+	public int getField(int field) {
+		return mFormat.readRaw(mData, mBase, field);
+	}
+
+	private int get(int slot) {
+		int field = mFields[slot];
+		return field < 0 ? 0 : mFormat.readRaw(mData, mBase, field);
+	}
+
+	public int getVersion() {
+		return get(VERSION);
+	}
+
+	/**
+	 * @param axis  0 to 2 for x, y and z */
+	public int getAcc(int axis) {
+		return get(ACC + axis);
+	}
+
+	/**
+	 * @param axis  0 to 2 for x, y and z */
+	public int getGyro(int axis) {
+		return get(GYRO + axis);
+	}
+
+	/**
+	 * @param axis  0 to 2 for x, y and z */
+	public int getMag(int axis) {
+		return get(MAG + axis);
+	}
+
+	public int getAltitude() {
+		return get(ALTITUDE);
+	}
+
+	public int getHeading() {
+		return get(HEADING);
+	}
+
+	/**
+	 * @param i  0 to 7 */
+	public int getServo(int i) {
+		return get(SERVO + i);
+	}
+
+	/**
+	 * @param i  0 to 7 */
+	public int getMotor(int i) {
+		return get(MOTOR + i);
+	}
+
+	/**
+	 * @param i  0 to 7 */
+	public int getRc(int i) {
+		return get(RC + i);
+	}
+
+	/**
+	 * Sensors present: nunchuk, acc, baro, mag, GPS from bit 0. */
+	public int getPresent() {
+		return get(PRESENT);
+	}
+
+	/**
+	 * Active modes: acc, baro, mag, GPS from bit 0. */
+	public int getMode() {
+		return get(MODE);
+	}
+
+	public int getCycleTime() {
+		return get(CYCLE_TIME);
+	}
+
+	public int getI2cErrors() {
+		return get(I2C_ERRORS);
+	}
+
+	/**
+	 * @param axis  0 for roll, 1 for pitch; in 0.1 degrees */
+	public int getAngle(int axis) {
+		return get(ANGLE + axis);
+	}
+
+	public int getMultiType() {
+		return get(MULTI_TYPE);
+	}
+
+	/**
+	 * @param item  0 to 7 */
+	public int getP(int item) {
+		return get(PID + 3 * item);
+	}
+
+	/**
+	 * @param item  0 to 7 */
+	public int getI(int item) {
+		return get(PID + 3 * item + 1);
+	}
+
+	/**
+	 * @param item  0 to 7 */
+	public int getD(int item) {
+		return get(PID + 3 * item + 2);
+	}
+
+	public int getRcRate() {
+		return get(RC_RATE);
+	}
+
+	public int getRcExpo() {
+		return get(RC_EXPO);
+	}
+
+	public int getRollPitchRate() {
+		return get(ROLL_PITCH_RATE);
+	}
+
+	public int getYawRate() {
+		return get(YAW_RATE);
+	}
+
+	public int getDynThrPid() {
+		return get(DYN_THR_PID);
+	}
+
+	/**
+	 * @param box  0 to 13
+	 * @param set  0 or 1 for the first or second activation byte */
+	public int getActivation(int box, int set) {
+		return get(ACTIVATION + 2 * box + set);
+	}
+
+	public int getGpsDistance() {
+		return get(GPS_DISTANCE);
+	}
+
+	public int getGpsDirection() {
+		return get(GPS_DIRECTION);
+	}
+
+	public int getGpsNumSat() {
+		return get(GPS_NUM_SAT);
+	}
+
+	public int getGpsFix() {
+		return get(GPS_FIX);
+	}
+
+	public int getGpsUpdate() {
+		return get(GPS_UPDATE);
+	}
+
+	public int getPowerMeterSum() {
+		return get(POWER_METER_SUM);
+	}
+
+	public int getPowerTrigger() {
+		return get(POWER_TRIGGER);
+	}
+
+	/**
+	 * Battery voltage in 0.1 V. */
+	public int getVbat() {
+		return get(VBAT);
+	}
+
+	public int getBaroAltitude() {
+		return get(BARO_ALTITUDE);
+	}
+}
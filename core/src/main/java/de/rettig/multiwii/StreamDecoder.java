@@ -0,0 +1,53 @@
+package de.rettig.multiwii;
+
+/**
+ * Turns the byte stream received from the flight controller into
+ * {@link Copter} state. Implementations reassemble messages across chunk
+ * boundaries and must not allocate per chunk or per message.
+ */
+public interface StreamDecoder {
+
+	/**
+	 * Receives every message right after it was decoded, before the next
+	 * message of the same chunk is decoded into the same Copter.
+	 */
+	interface Listener {
+		/**
+		 * @param copter  The Copter passed to decode(), holding the message
+		 */
+		void onDecoded(Copter copter);
+	}
+
+	/**
+	 * Feed a chunk of received bytes.
+	 * @param data  The received bytes
+	 * @param offset  Index of the first byte to consume
+	 * @param length  Number of bytes to consume
+	 * @param copter  The Copter to fill with every completed message
+	 * @return The number of messages completed by this chunk
+	 */
+	int decode(byte[] data, int offset, int length, Copter copter);
+
+	/**
+	 * Drop a partially received message, e.g. after the connection was reset.
+	 */
+	void reset();
+
+	/**
+	 * Return the number of messages dropped because they were damaged or
+	 * out of step with the stream, since this decoder was created.
+	 */
+	long getDiscardedCount();
+
+	/**
+	 * Return true if the last chunk ended inside a message, so the rest of
+	 * it has to wait for the next chunk.
+	 */
+	boolean isPartial();
+
+	/**
+	 * Set the listener told about every decoded message.
+	 * @param listener  The listener, or null
+	 */
+	void setListener(Listener listener);
+}
@@ -0,0 +1,76 @@
+package de.rettig.multiwii;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * A {@link Transport} over TCP, e.g. to a serial to Wi-Fi bridge or to a
+ * {@link SimulatedMultiWii} running on a desktop machine.
+ */
+public class TcpTransport implements Transport {
+
+	// Timeout for establishing the connection in ms
+	private static final int CONNECT_TIMEOUT = 5000;
+
+	private final Socket mSocket;
+	private final String mHost;
+	private final int mPort;
+
+	/**
+	 * Constructor for an outgoing connection, made by {@link #connect()}.
+	 * @param host  Host name or address
+	 * @param port  TCP port
+	 */
+	public TcpTransport(String host, int port) {
+		mSocket = new Socket();
+		mHost = host;
+		mPort = port;
+	}
+
+	/**
+	 * Constructor for a connection that is already established, e.g. one
+	 * returned by a ServerSocket.
+	 */
+	public TcpTransport(Socket socket) {
+		mSocket = socket;
+		mHost = socket.getInetAddress().getHostAddress();
+		mPort = socket.getPort();
+	}
+
+	public void connect() throws IOException {
+		if (mSocket.isConnected()) return;
+		mSocket.connect(new InetSocketAddress(mHost, mPort), CONNECT_TIMEOUT);
+		// Requests are tiny and latency matters more than packet count
+		mSocket.setTcpNoDelay(true);
+	}
+
+	public InputStream getInputStream() throws IOException {
+		return mSocket.getInputStream();
+	}
+
+	public OutputStream getOutputStream() throws IOException {
+		return mSocket.getOutputStream();
+	}
+
+	public void close() throws IOException {
+		mSocket.close();
+	}
+
+	public String getName() {
+		return mHost + ":" + mPort;
+	}
+
+	/**
+	 * Return a factory of outgoing connections to the given address.
+	 */
+	public static Transport.Factory factory(final String host, final int port) {
+		return new Transport.Factory() {
+			public Transport create() {
+				return new TcpTransport(host, port);
+			}
+		};
+	}
+}
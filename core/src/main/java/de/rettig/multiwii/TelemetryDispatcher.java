@@ -0,0 +1,117 @@
+package de.rettig.multiwii;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Delivers telemetry events to {@link TelemetryListener}s, each on the
+ * Executor it was registered with, or on the firing thread if it was
+ * registered without one.
+ *
+ * Frames and link statistics are fired often, so each registration holds
+ * a preallocated task per kind of event and submits it only when the
+ * previous one has run; firing them does not allocate, and a listener
+ * that falls behind is simply handed the newest state. State changes are
+ * rare and delivered one by one.
+ */
+public class TelemetryDispatcher {
+
+	private final class Registration {
+		final TelemetryListener mListener;
+		final Executor mExecutor;
+		volatile boolean mRemoved;
+		final AtomicBoolean mFramePending = new AtomicBoolean();
+		final AtomicBoolean mStatsPending = new AtomicBoolean();
+		volatile CopterSnapshot mSnapshot;
+		volatile LinkStats mStats;
+
+		final Runnable mFrameTask = new Runnable() {
+			public void run() {
+				mFramePending.set(false);
+				if (!mRemoved) mListener.onFrame(mSnapshot);
+			}
+		};
+
+		final Runnable mStatsTask = new Runnable() {
+			public void run() {
+				mStatsPending.set(false);
+				if (!mRemoved) mListener.onLinkStats(mStats);
+			}
+		};
+
+		Registration(TelemetryListener listener, Executor executor) {
+			mListener = listener;
+			mExecutor = executor;
+		}
+	}
+
+	private final CopyOnWriteArrayList<Registration> mRegistrations = new CopyOnWriteArrayList<Registration>();
+
+	/**
+	 * Register a listener.
+	 * @param listener  The listener
+	 * @param executor  Runs the calls, or null to call on the firing thread
+	 */
+	public void addListener(TelemetryListener listener, Executor executor) {
+		mRegistrations.add(new Registration(listener, executor));
+	}
+
+	/**
+	 * Unregister a listener. Calls already submitted to its Executor are
+	 * skipped.
+	 */
+	public void removeListener(TelemetryListener listener) {
+		for (Registration r : mRegistrations) {
+			if (r.mListener == listener) {
+				r.mRemoved = true;
+				mRegistrations.remove(r);
+			}
+		}
+	}
+
+	/**
+	 * Tell every listener that new state was decoded.
+	 */
+	public void fireFrame(CopterSnapshot snapshot) {
+		for (Registration r : mRegistrations) {
+			r.mSnapshot = snapshot;
+			if (r.mExecutor == null) {
+				r.mListener.onFrame(snapshot);
+			} else if (r.mFramePending.compareAndSet(false, true)) {
+				r.mExecutor.execute(r.mFrameTask);
+			}
+		}
+	}
+
+	/**
+	 * Tell every listener that the connection state changed.
+	 */
+	public void fireStateChanged(final int state, final boolean reconnected) {
+		for (final Registration r : mRegistrations) {
+			if (r.mExecutor == null) {
+				r.mListener.onStateChanged(state, reconnected);
+			} else {
+				r.mExecutor.execute(new Runnable() {
+					public void run() {
+						if (!r.mRemoved) r.mListener.onStateChanged(state, reconnected);
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * Tell every listener that the link statistics took a sample.
+	 */
+	public void fireLinkStats(LinkStats stats) {
+		for (Registration r : mRegistrations) {
+			r.mStats = stats;
+			if (r.mExecutor == null) {
+				r.mListener.onLinkStats(stats);
+			} else if (r.mStatsPending.compareAndSet(false, true)) {
+				r.mExecutor.execute(r.mStatsTask);
+			}
+		}
+	}
+}
@@ -0,0 +1,324 @@
+package de.rettig.multiwii;
+
+/**
+ * Fixed capacity history of {@link Copter} states for charts and analysis.
+ *
+ * Every channel is kept in its own short array next to an array of
+ * timestamps, so appending copies a few values and allocates nothing, and
+ * a query over one channel walks a single dense array. At 40 bytes per
+ * sample, 30 minutes at 50 Hz take about 3.6 MB. The attitude estimated
+ * on the phone is kept in 0.1 degrees.
+ *
+ * Samples are addressed by sequence number: the first sample ever appended
+ * has number 0, and the history holds the numbers from {@link #getFirst()}
+ * up to, not including, {@link #getEnd()}. Ranges are given the same way,
+ * as a first number and an end number.
+ *
+ * One thread may append while others read: a sample is complete once
+ * {@link #getEnd()} counts it. A reader falling behind by the whole
+ * capacity may see values overwritten by newer samples.
+ */
+public class TelemetryHistory {
+
+	public static final int AX = 0;
+	public static final int AY = 1;
+	public static final int AZ = 2;
+	public static final int GX = 3;
+	public static final int GY = 4;
+	public static final int GZ = 5;
+	public static final int MAG_X = 6;
+	public static final int MAG_Y = 7;
+	public static final int MAG_Z = 8;
+	public static final int BARO = 9;
+	public static final int HEAD = 10;
+	public static final int ANGLE_X = 11;
+	public static final int ANGLE_Y = 12;
+	public static final int FUSED_ROLL = 13;
+	public static final int FUSED_PITCH = 14;
+	public static final int FUSED_HEADING = 15;
+	/** Number of channels. */
+	public static final int CHANNELS = 16;
+
+	private static final String[] NAMES = {
+		"ax", "ay", "az", "gx", "gy", "gz", "magX", "magY", "magZ",
+		"baro", "head", "angleX", "angleY", "fusedRoll", "fusedPitch", "fusedHeading"
+	};
+
+	private final short[][] mChannels = new short[CHANNELS][];
+	private final long[] mTimes;
+	private final int mCapacity;
+	// Sequence number of the next sample, written after the sample itself
+	private volatile long mEnd = 0;
+	// Samples before this one were removed by clear()
+	private volatile long mCleared = 0;
+
+	/**
+	 * Constructor.
+	 * @param capacity  Number of samples kept before the oldest are overwritten
+	 */
+	public TelemetryHistory(int capacity) {
+		if (capacity < 1) throw new IllegalArgumentException("capacity " + capacity);
+		mCapacity = capacity;
+		mTimes = new long[capacity];
+		for (int c = 0; c < CHANNELS; c++) {
+			mChannels[c] = new short[capacity];
+		}
+	}
+
+	/**
+	 * Append the current state. Values beyond the 16 bit range are clamped.
+	 * @param time  Time of the sample, e.g. in ms; must not decrease
+	 * @param copter  The state to store
+	 */
+	public void append(long time, Copter copter) {
+		long end = mEnd;
+		int i = (int) (end % mCapacity);
+		mTimes[i] = time;
+		short[][] ch = mChannels;
+		ch[AX][i] = clamp(copter.ax);
+		ch[AY][i] = clamp(copter.ay);
+		ch[AZ][i] = clamp(copter.az);
+		ch[GX][i] = clamp(copter.gx);
+		ch[GY][i] = clamp(copter.gy);
+		ch[GZ][i] = clamp(copter.gz);
+		ch[MAG_X][i] = clamp(copter.magX);
+		ch[MAG_Y][i] = clamp(copter.magY);
+		ch[MAG_Z][i] = clamp(copter.magZ);
+		ch[BARO][i] = clamp(copter.baro);
+		ch[HEAD][i] = clamp(copter.head);
+		ch[ANGLE_X][i] = clamp(copter.angleX);
+		ch[ANGLE_Y][i] = clamp(copter.angleY);
+		ch[FUSED_ROLL][i] = (short) Math.round(copter.fusedRoll * 10);
+		ch[FUSED_PITCH][i] = (short) Math.round(copter.fusedPitch * 10);
+		ch[FUSED_HEADING][i] = (short) Math.round(copter.fusedHeading * 10);
+		mEnd = end + 1;
+	}
+
+	/**
+	 * Forget all samples. Sequence numbers keep counting up. Call from the
+	 * appending thread.
+	 */
+	public void clear() {
+		mCleared = mEnd;
+	}
+
+	/**
+	 * Return the sequence number of the oldest sample held. */
+	public long getFirst() {
+		return Math.max(mCleared, mEnd - mCapacity);
+	}
+
+	/**
+	 * Return the sequence number the next sample will get. */
+	public long getEnd() {
+		return mEnd;
+	}
+
+	/**
+	 * Return the number of samples held. */
+	public int size() {
+		long end = mEnd;
+		return (int) (end - Math.max(mCleared, end - mCapacity));
+	}
+
+	/**
+	 * Return the highest number of samples held. */
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	/**
+	 * Return the name of a channel, e.g. for chart labels.
+	 * @param channel  One of the channel constants
+	 */
+	public static String getName(int channel) {
+		return NAMES[channel];
+	}
+
+	/**
+	 * Return the value of a channel in a sample.
+	 * @param channel  One of the channel constants
+	 * @param seq  Sequence number of a sample held
+	 */
+	public int get(int channel, long seq) {
+		return mChannels[channel][index(seq)];
+	}
+
+	/**
+	 * Return the time of a sample.
+	 * @param seq  Sequence number of a sample held
+	 */
+	public long getTime(long seq) {
+		return mTimes[index(seq)];
+	}
+
+	/**
+	 * Find the first sample taken at or after the given time.
+	 * @param time  The time to look for
+	 * @return Its sequence number, {@link #getEnd()} if all samples are older
+	 */
+	public long find(long time) {
+		long lo = getFirst();
+		long hi = mEnd;
+		while (lo < hi) {
+			long mid = (lo + hi) >>> 1;
+			if (mTimes[(int) (mid % mCapacity)] < time) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Copy a range of one channel.
+	 * @param channel  One of the channel constants
+	 * @param first  Sequence number of the first sample to copy
+	 * @param end  Sequence number after the last sample to copy
+	 * @param dst  Array receiving the values
+	 * @param offset  Index in dst of the first value
+	 * @return The number of values copied, at most end - first
+	 */
+	public int copy(int channel, long first, long end, short[] dst, int offset) {
+		first = Math.max(first, getFirst());
+		end = Math.min(end, mEnd);
+		if (end <= first) return 0;
+		int count = (int) (end - first);
+		short[] src = mChannels[channel];
+		int i = (int) (first % mCapacity);
+		// The range may wrap around the end of the ring
+		int head = Math.min(count, mCapacity - i);
+		System.arraycopy(src, i, dst, offset, head);
+		System.arraycopy(src, 0, dst, offset + head, count - head);
+		return count;
+	}
+
+	/**
+	 * Copy the times of a range of samples.
+	 * @see #copy(int, long, long, short[], int)
+	 */
+	public int copyTimes(long first, long end, long[] dst, int offset) {
+		first = Math.max(first, getFirst());
+		end = Math.min(end, mEnd);
+		if (end <= first) return 0;
+		int count = (int) (end - first);
+		int i = (int) (first % mCapacity);
+		int head = Math.min(count, mCapacity - i);
+		System.arraycopy(mTimes, i, dst, offset, head);
+		System.arraycopy(mTimes, 0, dst, offset + head, count - head);
+		return count;
+	}
+
+	/**
+	 * Return the smallest value of a channel in a range, or 0 if the range
+	 * holds no samples.
+	 * @param channel  One of the channel constants
+	 * @param first  Sequence number of the first sample
+	 * @param end  Sequence number after the last sample
+	 */
+	public int min(int channel, long first, long end) {
+		first = Math.max(first, getFirst());
+		end = Math.min(end, mEnd);
+		if (end <= first) return 0;
+		short[] src = mChannels[channel];
+		int min = Short.MAX_VALUE;
+		int i = (int) (first % mCapacity);
+		for (long n = end - first; n > 0; n--) {
+			int v = src[i];
+			if (v < min) min = v;
+			if (++i == mCapacity) i = 0;
+		}
+		return min;
+	}
+
+	/**
+	 * Return the largest value of a channel in a range, or 0 if the range
+	 * holds no samples.
+	 * @see #min(int, long, long)
+	 */
+	public int max(int channel, long first, long end) {
+		first = Math.max(first, getFirst());
+		end = Math.min(end, mEnd);
+		if (end <= first) return 0;
+		short[] src = mChannels[channel];
+		int max = Short.MIN_VALUE;
+		int i = (int) (first % mCapacity);
+		for (long n = end - first; n > 0; n--) {
+			int v = src[i];
+			if (v > max) max = v;
+			if (++i == mCapacity) i = 0;
+		}
+		return max;
+	}
+
+	/**
+	 * Return the mean of a channel in a range, or 0 if the range holds no
+	 * samples.
+	 * @see #min(int, long, long)
+	 */
+	public double mean(int channel, long first, long end) {
+		first = Math.max(first, getFirst());
+		end = Math.min(end, mEnd);
+		if (end <= first) return 0;
+		short[] src = mChannels[channel];
+		long sum = 0;
+		int i = (int) (first % mCapacity);
+		for (long n = end - first; n > 0; n--) {
+			sum += src[i];
+			if (++i == mCapacity) i = 0;
+		}
+		return (double) sum / (end - first);
+	}
+
+	/**
+	 * Reduce a time range of one channel to the smallest and largest value
+	 * in each of a number of equally long columns, e.g. one per pixel
+	 * column of a chart. Drawing the result costs the same however many
+	 * samples the range holds. Columns without samples get a min larger
+	 * than their max.
+	 * @param channel  One of the channel constants
+	 * @param from  Start of the range, inclusive
+	 * @param to  End of the range, exclusive
+	 * @param columns  Number of columns
+	 * @param min  Receives the smallest value of each column
+	 * @param max  Receives the largest value of each column
+	 * @return The number of columns that hold samples
+	 */
+	public int decimate(int channel, long from, long to, int columns, int[] min, int[] max) {
+		for (int c = 0; c < columns; c++) {
+			min[c] = Integer.MAX_VALUE;
+			max[c] = Integer.MIN_VALUE;
+		}
+		long span = to - from;
+		if (span <= 0 || columns <= 0) return 0;
+		short[] src = mChannels[channel];
+		int filled = 0;
+		long seq = find(from);
+		int i = (int) (seq % mCapacity);
+		for (; seq < mEnd; seq++) {
+			long t = mTimes[i];
+			if (t >= to) break;
+			int c = (int) ((t - from) * columns / span);
+			int v = src[i];
+			if (min[c] > max[c]) filled++;
+			if (v < min[c]) min[c] = v;
+			if (v > max[c]) max[c] = v;
+			if (++i == mCapacity) i = 0;
+		}
+		return filled;
+	}
+
+	private int index(long seq) {
+		if (seq < getFirst() || seq >= mEnd) {
+			throw new IndexOutOfBoundsException("sample " + seq + " not in [" + getFirst() + ", " + mEnd + ")");
+		}
+		return (int) (seq % mCapacity);
+	}
+
+	private static short clamp(int value) {
+		if (value > Short.MAX_VALUE) return Short.MAX_VALUE;
+		if (value < Short.MIN_VALUE) return Short.MIN_VALUE;
+		return (short) value;
+	}
+}
@@ -0,0 +1,45 @@
+package de.rettig.multiwii;
+
+/**
+ * Receives the events of the telemetry connection. Listeners are
+ * registered with a {@link TelemetryDispatcher} together with the Executor
+ * they are called on, so a listener chooses its own thread.
+ */
+public interface TelemetryListener {
+
+	/**
+	 * Called after new state was decoded. Frame events are coalesced: while
+	 * a call is pending on the listener's Executor, further frames only
+	 * update the snapshot, so a slow listener always sees the newest state.
+	 * @param snapshot  Holds the newest decoded state
+	 */
+	void onFrame(CopterSnapshot snapshot);
+
+	/**
+	 * Called when the connection state changed. Every change is delivered,
+	 * in order.
+	 * @param state  The new state, one of the MultiWiiConnectorService state constants
+	 * @param reconnected  true if the connection was made again after it was lost
+	 */
+	void onStateChanged(int state, boolean reconnected);
+
+	/**
+	 * Called after the link statistics took a sample, coalesced like frames.
+	 * @param stats  The statistics, with fresh rates
+	 */
+	void onLinkStats(LinkStats stats);
+
+	/**
+	 * Ignores every event. Extend it to handle only some of them.
+	 */
+	public static class Adapter implements TelemetryListener {
+		public void onFrame(CopterSnapshot snapshot) {
+		}
+
+		public void onStateChanged(int state, boolean reconnected) {
+		}
+
+		public void onLinkStats(LinkStats stats) {
+		}
+	}
+}
@@ -0,0 +1,243 @@
+package de.rettig.multiwii;
+
+/**
+ * Decodes the main connection off the UI thread. The thread reading the
+ * connection hands every chunk to {@link #onData}, which decodes it with
+ * the current protocol, runs the attitude filter on every decoded message
+ * and appends it to the history, and publishes the result to a
+ * {@link CopterSnapshot}; a thread with a regular tick, usually the
+ * {@link SharedWriter}, drives polling and samples the link statistics
+ * through {@link #onTick(long)}.
+ * Listeners of the {@link TelemetryDispatcher} are told about new frames
+ * and samples, so the UI only ever handles the decoded state.
+ *
+ * Protocol and polling may be changed from any thread.
+ */
+public class TelemetryPipeline {
+
+	private final TelemetryDispatcher mDispatcher;
+	private final LinkStats mStats;
+	private final PollScheduler mPoller;
+	private final MspScheduler mMspScheduler;
+	private final FrameDecoder mFrameDecoder = new FrameDecoder();
+	private final MspDecoder mMspDecoder;
+	private final AttitudeFilter mFilter = new AttitudeFilter();
+	private final CopterSnapshot mSnapshot = new CopterSnapshot();
+	private final TelemetryHistory mHistory;
+	private final long mStatsInterval;
+
+	// Decoding state, guarded by mDecodeLock
+	private final Object mDecodeLock = new Object();
+	private final Copter mCopter = new Copter();
+	private StreamDecoder mDecoder;
+	private long mDiscarded;
+	private long mResyncs;
+
+	// Time stamps of the chunk being decoded, for the per message listener
+	private long mChunkMillis;
+	private long mChunkNanos;
+
+	// Filters and records every message of a chunk, not just the last one
+	private final StreamDecoder.Listener mDecodedListener = new StreamDecoder.Listener() {
+		public void onDecoded(Copter copter) {
+			// The MSP decoder reports replies to its scheduler itself
+			if (mDecoder == mFrameDecoder) copter.requestTime = mPoller.onFrame();
+			// Messages of one chunk arrive together; their requests were
+			// sent one sample period apart, which times them better
+			mFilter.update(copter, copter.requestTime != 0 ? copter.requestTime : mChunkNanos);
+			mHistory.append(mChunkMillis, copter);
+		}
+	};
+
+	// Set by any thread, applied before the next chunk is decoded
+	private volatile boolean mMsp = false;
+	private volatile boolean mResetDecoder = false;
+
+	// Polling state, guarded by this
+	private boolean mPolling = false;
+	private boolean mPollPending = false;
+	private long mPollStart;
+	private long mNextSample;
+
+	/**
+	 * Constructor.
+	 * @param sender  Writes the poll requests
+	 * @param dispatcher  Receives the frame and link statistics events
+	 * @param tracker  Told about every reply and lost request by the poll schedulers
+	 * @param stats  Counts frames and discarded data, and is sampled on every stats interval
+	 * @param historyCapacity  Number of decoded states kept in the history
+	 * @param statsIntervalMillis  Time between two samples of the link statistics
+	 */
+	public TelemetryPipeline(PollScheduler.Sender sender, TelemetryDispatcher dispatcher,
+			RequestTracker tracker, LinkStats stats, int historyCapacity, long statsIntervalMillis) {
+		mDispatcher = dispatcher;
+		mStats = stats;
+		mPoller = new PollScheduler(sender, PollScheduler.STATUS_REQUEST, tracker);
+		mMspScheduler = new MspScheduler(sender, tracker);
+		mMspDecoder = new MspDecoder(mMspScheduler);
+		mDecoder = mFrameDecoder;
+		mFrameDecoder.setListener(mDecodedListener);
+		mMspDecoder.setListener(mDecodedListener);
+		mHistory = new TelemetryHistory(historyCapacity);
+		mStatsInterval = statsIntervalMillis * 1000000L;
+	}
+
+	/**
+	 * Decode a chunk of received data. Called by the thread reading the
+	 * connection or replaying a recording.
+	 * @param data  The received bytes
+	 * @param offset  Index of the first byte
+	 * @param length  Number of bytes
+	 * @param timeMillis  Time stamp of the chunk in the history
+	 */
+	public void onData(byte[] data, int offset, int length, long timeMillis) {
+		synchronized (mDecodeLock) {
+			StreamDecoder decoder = mMsp ? mMspDecoder : mFrameDecoder;
+			if (decoder != mDecoder) {
+				mDecoder = decoder;
+				mDiscarded = decoder.getDiscardedCount();
+				mResetDecoder = true;
+			}
+			if (mResetDecoder) {
+				mResetDecoder = false;
+				decoder.reset();
+			}
+
+			mChunkMillis = timeMillis;
+			mChunkNanos = System.nanoTime();
+			int frames = decoder.decode(data, offset, length, mCopter);
+			long discarded = decoder.getDiscardedCount();
+			if (discarded != mDiscarded) {
+				mStats.add(LinkStats.DISCARDED, discarded - mDiscarded);
+				mDiscarded = discarded;
+			}
+			long resyncs = mFrameDecoder.getResyncCount();
+			if (resyncs != mResyncs) {
+				mStats.add(LinkStats.RESYNCS, resyncs - mResyncs);
+				mResyncs = resyncs;
+			}
+			if (decoder.isPartial()) mStats.add(LinkStats.SHORT_READS, 1);
+			if (frames == 0) return;
+
+			mStats.add(LinkStats.FRAMES, frames);
+			mSnapshot.publish(mCopter);
+		}
+		mDispatcher.fireFrame(mSnapshot);
+	}
+
+	/**
+	 * Start polling, or poll due requests and retry lost ones, and sample
+	 * the link statistics when it is time. Called at least every few ms.
+	 * @param now  The current System.nanoTime()
+	 */
+	public void onTick(long now) {
+		boolean sample;
+		synchronized (this) {
+			if (mPollPending && now - mPollStart >= 0) {
+				mPollPending = false;
+				if (mMsp) mMspScheduler.start();
+				else mPoller.start();
+			} else if (mPolling && !mPollPending) {
+				if (mMsp) mMspScheduler.onTick();
+				else mPoller.onTick();
+			}
+			sample = now - mNextSample >= 0;
+			if (sample) {
+				mNextSample = now + mStatsInterval;
+				mStats.sample(now / 1000000);
+			}
+		}
+		if (sample) mDispatcher.fireLinkStats(mStats);
+	}
+
+	/**
+	 * Start polling with the next tick after a delay. A partially
+	 * received message is dropped; the decoded state, history and
+	 * attitude estimate carry over from a previous connection.
+	 * @param delayMillis  Time to give the copter after connecting
+	 */
+	public synchronized void startPolling(long delayMillis) {
+		mPoller.stop();
+		mMspScheduler.stop();
+		mPolling = true;
+		mPollPending = true;
+		mPollStart = System.nanoTime() + delayMillis * 1000000L;
+		mResetDecoder = true;
+	}
+
+	/**
+	 * Stop polling.
+	 */
+	public synchronized void stopPolling() {
+		mPolling = false;
+		mPollPending = false;
+		mPoller.stop();
+		mMspScheduler.stop();
+	}
+
+	/**
+	 * Switch between MSP and the legacy status frame. Polling, if active,
+	 * goes on with the new protocol at once.
+	 * @param msp  true to speak MSP
+	 */
+	public synchronized void setProtocol(boolean msp) {
+		if (msp == mMsp) return;
+		mPoller.stop();
+		mMspScheduler.stop();
+		mMsp = msp;
+		if (mPolling) {
+			mPollPending = true;
+			mPollStart = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Return true if MSP is spoken. */
+	public boolean isMsp() {
+		return mMsp;
+	}
+
+	/**
+	 * Drop a partially received message before the next chunk, e.g. when
+	 * a replay starts.
+	 */
+	public void resetDecoder() {
+		mResetDecoder = true;
+	}
+
+	/**
+	 * Return the newest decoded state. */
+	public CopterSnapshot getSnapshot() {
+		return mSnapshot;
+	}
+
+	/**
+	 * Return the history of decoded states. It is appended to by the
+	 * decoding thread and may be read from any other thread. */
+	public TelemetryHistory getHistory() {
+		return mHistory;
+	}
+
+	/**
+	 * Return the whole most recent legacy status frame, e.g. for motors,
+	 * servos or the battery voltage, which are not copied into the
+	 * {@link Copter}. Fields are decoded as they are read. Only valid on the
+	 * decoding thread, i.e. in a listener registered without an Executor.
+	 * @return The frame, or null while MSP is spoken or before the first frame
+	 */
+	public StatusFrame getStatusFrame() {
+		return mMsp ? null : mFrameDecoder.getFrame();
+	}
+
+	/**
+	 * Return the scheduler of the MSP requests, e.g. to set their rates. */
+	public MspScheduler getMspScheduler() {
+		return mMspScheduler;
+	}
+
+	/**
+	 * Return the scheduler of the legacy status requests. */
+	public PollScheduler getPoller() {
+		return mPoller;
+	}
+}
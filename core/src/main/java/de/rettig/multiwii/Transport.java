@@ -0,0 +1,45 @@
+package de.rettig.multiwii;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A byte stream connection to a flight controller, e.g. a Bluetooth RFCOMM
+ * socket, a TCP connection or an in-memory pipe to a simulator.
+ */
+public interface Transport {
+
+	/**
+	 * Creates unconnected transports to the same remote end, so a lost
+	 * connection can be made again; a closed transport cannot be reused.
+	 */
+	interface Factory {
+		/** Return a new, unconnected transport. */
+		Transport create();
+	}
+
+	/**
+	 * Establish the connection. This is a blocking call; it returns once
+	 * connected and throws if the connection cannot be made. Does nothing if
+	 * the transport is connected already.
+	 */
+	void connect() throws IOException;
+
+	/**
+	 * Return the stream of received bytes. */
+	InputStream getInputStream() throws IOException;
+
+	/**
+	 * Return the stream to send bytes with. */
+	OutputStream getOutputStream() throws IOException;
+
+	/**
+	 * Close the connection. Unblocks pending connect and read calls.
+	 */
+	void close() throws IOException;
+
+	/**
+	 * Return a name for the remote end that can be shown to the user. */
+	String getName();
+}
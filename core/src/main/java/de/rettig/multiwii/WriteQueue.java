@@ -0,0 +1,172 @@
+package de.rettig.multiwii;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded queue of outgoing messages, filled by any number of threads and
+ * emptied by one writer thread at a time, usually of a {@link SharedWriter}.
+ *
+ * Adding never blocks or locks: a full queue rejects the message. The
+ * writer collects everything queued into one batch, so several small
+ * requests go out with a single socket write. A message queued with
+ * coalescing enabled is dropped when the very same array is already part
+ * of the batch, so a poll request repeated while the link is stalled is
+ * only sent once. The arrays are queued as they are and must not be
+ * changed afterwards.
+ */
+public class WriteQueue {
+
+	private final AtomicReferenceArray<byte[]> mSlots;
+	// Written before the slot is published, read after it was seen
+	private final boolean[] mCoalesce;
+	private final int mMask;
+	private final int mBatchSize;
+	private final AtomicLong mTail = new AtomicLong();
+	private final AtomicLong mHead = new AtomicLong();
+
+	// Unparked whenever a message was queued
+	private volatile Thread mConsumer;
+
+	// Messages in the current batch, only used by the writer
+	private final byte[][] mBatch;
+	private int mBatchCount;
+
+	private final AtomicLong mRejected = new AtomicLong();
+	private volatile long mCoalesced;
+	private volatile long mBatches;
+	private volatile int mMaxDepth;
+
+	/**
+	 * Constructor.
+	 * @param capacity  Number of queued messages, rounded up to a power of two
+	 * @param batchSize  Largest number of bytes written at once, also the largest message
+	 */
+	public WriteQueue(int capacity, int batchSize) {
+		int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		mSlots = new AtomicReferenceArray<byte[]>(size);
+		mCoalesce = new boolean[size];
+		mMask = size - 1;
+		mBatchSize = batchSize;
+		mBatch = new byte[size][];
+	}
+
+	/**
+	 * Queue a message and wake the consumer.
+	 * @param data  The message, at most the batch size long
+	 * @param coalesce  true to drop the message if the same array is sent with the same batch
+	 * @return false if the queue was full and the message was dropped
+	 */
+	public boolean offer(byte[] data, boolean coalesce) {
+		if (data.length > mBatchSize) {
+			throw new IllegalArgumentException("message of " + data.length + " bytes exceeds batch size " + mBatchSize);
+		}
+		long tail;
+		do {
+			tail = mTail.get();
+			if (tail - mHead.get() > mMask) {
+				mRejected.incrementAndGet();
+				return false;
+			}
+		} while (!mTail.compareAndSet(tail, tail + 1));
+		int i = (int) tail & mMask;
+		mCoalesce[i] = coalesce;
+		mSlots.set(i, data);
+
+		// Racing producers may lose an update, good enough for a statistic
+		int depth = (int) (tail + 1 - mHead.get());
+		if (depth > mMaxDepth) mMaxDepth = depth;
+		Thread consumer = mConsumer;
+		if (consumer != null) LockSupport.unpark(consumer);
+		return true;
+	}
+
+	/**
+	 * Set the thread that empties the queue. It is unparked after every
+	 * message queued, so it may park while the queue is empty.
+	 */
+	public void setConsumer(Thread consumer) {
+		mConsumer = consumer;
+	}
+
+	/**
+	 * Return the number of messages in the last batch returned by
+	 * {@link #poll(byte[])}, not counting coalesced ones. */
+	public int getLastBatchMessages() {
+		return mBatchCount;
+	}
+
+	/**
+	 * Move queued messages into a batch, until the queue is empty or the
+	 * batch is full. Only one thread at a time may call this, and a thread
+	 * taking over from another must see its last call happen before.
+	 * @param dst  Receives the bytes to write, at least the batch size long
+	 * @return The number of bytes to write, 0 if the queue was empty
+	 */
+	public int poll(byte[] dst) {
+		int length = 0;
+		int count = 0;
+		long head = mHead.get();
+		while (true) {
+			int i = (int) head & mMask;
+			byte[] data = mSlots.get(i);
+			// Empty, or a producer has claimed the slot but not yet filled it
+			if (data == null) break;
+			boolean coalesce = mCoalesce[i];
+			if (coalesce && contains(data, count)) {
+				mCoalesced++;
+			} else {
+				if (length + data.length > mBatchSize || count == mBatch.length) break;
+				System.arraycopy(data, 0, dst, length, data.length);
+				length += data.length;
+				mBatch[count++] = data;
+			}
+			mSlots.set(i, null);
+			mHead.lazySet(++head);
+		}
+		for (int i = 0; i < count; i++) {
+			mBatch[i] = null;
+		}
+		mBatchCount = count;
+		if (count > 0) mBatches++;
+		return length;
+	}
+
+	private boolean contains(byte[] data, int count) {
+		for (int i = 0; i < count; i++) {
+			if (mBatch[i] == data) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Return the number of messages waiting. */
+	public int getDepth() {
+		return (int) (mTail.get() - mHead.get());
+	}
+
+	/**
+	 * Return the highest number of messages that were waiting at once. */
+	public int getMaxDepth() {
+		return mMaxDepth;
+	}
+
+	/**
+	 * Return the number of messages dropped because the queue was full. */
+	public long getRejectedCount() {
+		return mRejected.get();
+	}
+
+	/**
+	 * Return the number of messages dropped as duplicates. */
+	public long getCoalescedCount() {
+		return mCoalesced;
+	}
+
+	/**
+	 * Return the number of batches handed to the writer. */
+	public long getBatchCount() {
+		return mBatches;
+	}
+}
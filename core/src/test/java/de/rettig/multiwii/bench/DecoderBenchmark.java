@@ -0,0 +1,86 @@
+package de.rettig.multiwii.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.rettig.multiwii.Copter;
+import de.rettig.multiwii.FrameDecoder;
+import de.rettig.multiwii.MspDecoder;
+
+/**
+ * Decode throughput in frames per second, for streams arriving in chunks of
+ * different sizes. Run with <code>-prof gc</code> to see the allocation per
+ * frame, which must stay at zero. The noisy stream loses or repeats a byte
+ * in one frame out of eight; its score counts the frames sent, so it
+ * compares with the clean stream at the same byte rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DecoderBenchmark {
+
+	static final int FRAMES = 64;
+	static final int ERRORS = FRAMES / 8;
+
+	@Param({ "1", "16", "155", "1024" })
+	int chunkSize;
+
+	byte[] statusStream;
+	byte[] noisyStream;
+	byte[] mspStream;
+	final Copter copter = new Copter();
+	final FrameDecoder frameDecoder = new FrameDecoder();
+	final MspDecoder mspDecoder = new MspDecoder(null);
+
+	@Setup
+	public void setup() {
+		statusStream = Frames.statusStream(FRAMES, 42);
+		noisyStream = Frames.noisyStatusStream(FRAMES, 42, ERRORS);
+		mspStream = Frames.mspStream(FRAMES, 42);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public int statusFrames() {
+		int frames = 0;
+		for (int o = 0; o < statusStream.length; o += chunkSize) {
+			frames += frameDecoder.decode(statusStream, o, Math.min(chunkSize, statusStream.length - o), copter);
+		}
+		return frames;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public int noisyStatusFrames() {
+		int frames = 0;
+		for (int o = 0; o < noisyStream.length; o += chunkSize) {
+			frames += frameDecoder.decode(noisyStream, o, Math.min(chunkSize, noisyStream.length - o), copter);
+		}
+		return frames;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public int mspMessages() {
+		int messages = 0;
+		for (int o = 0; o < mspStream.length; o += chunkSize) {
+			messages += mspDecoder.decode(mspStream, o, Math.min(chunkSize, mspStream.length - o), copter);
+		}
+		return messages;
+	}
+}
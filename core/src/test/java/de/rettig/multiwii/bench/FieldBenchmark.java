@@ -0,0 +1,102 @@
+package de.rettig.multiwii.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.rettig.multiwii.Copter;
+import de.rettig.multiwii.FrameDecoder;
+import de.rettig.multiwii.FrameFormat;
+import de.rettig.multiwii.FrameFormats;
+import de.rettig.multiwii.Msp;
+import de.rettig.multiwii.StatusFrame;
+
+/**
+ * Cost of extracting fields from a complete frame.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FieldBenchmark {
+
+	byte[] frame;
+	int offset = 78;
+	final Copter copter = new Copter();
+	final StatusFrame status = new StatusFrame();
+	final FrameFormat format = FrameFormats.MULTIWII_1_8;
+	final int motor0 = format.indexOf("motor0");
+	// Not laid out like MultiWii 1.8, so decoded through the tables
+	final FrameFormat generic = new FrameFormat("generic", 99, FrameDecoder.FRAME_LENGTH,
+			"ax 2 s16\nay 4 s16\naz 6 s16\ngx 8 s16\ngy 10 s16\ngz 12 s16\n" +
+			"magX 14 s16 /3\nmagY 16 s16 /3\nmagZ 18 s16 /3\nbaro 20 s16\nhead 22 u16\n" +
+			"angleX 78 s16 /10\nangleY 80 s16 /10\n");
+
+	@Setup
+	public void setup() {
+		frame = Frames.statusStream(1, 7);
+	}
+
+	@Benchmark
+	public int bytesToInt() {
+		return FrameDecoder.bytesToInt(frame[offset], frame[offset + 1]);
+	}
+
+	@Benchmark
+	public int read16() {
+		return Msp.read16(frame, offset);
+	}
+
+	@Benchmark
+	public int flyweight() {
+		return status.wrap(format, frame, 0).getAngle(0);
+	}
+
+	@Benchmark
+	public int flyweightMotors() {
+		status.wrap(format, frame, 0);
+		int sum = 0;
+		for (int i = 0; i < StatusFrame.CHANNELS; i++) {
+			sum += status.getMotor(i);
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public Copter decodeFrame() {
+		FrameDecoder.decodeFrame(frame, 0, copter);
+		return copter;
+	}
+
+	@Benchmark
+	public Copter decodeFormat() {
+		format.decode(frame, 0, copter);
+		return copter;
+	}
+
+	@Benchmark
+	public Copter decodeGeneric() {
+		generic.decode(frame, 0, copter);
+		return copter;
+	}
+
+	@Benchmark
+	public int formatMotors() {
+		int sum = 0;
+		for (int i = 0; i < StatusFrame.CHANNELS; i++) {
+			sum += format.read(frame, 0, motor0 + i);
+		}
+		return sum;
+	}
+}
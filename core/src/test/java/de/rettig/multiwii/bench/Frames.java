@@ -0,0 +1,91 @@
+package de.rettig.multiwii.bench;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import de.rettig.multiwii.FrameDecoder;
+import de.rettig.multiwii.Msp;
+
+/**
+ * Builds streams of frames with random contents for the benchmarks.
+ */
+final class Frames {
+
+	private Frames() {
+	}
+
+	/**
+	 * Return the given number of legacy status frames, each followed by its
+	 * delimiter, as the decoder sees them on the link.
+	 */
+	static byte[] statusStream(int frames, long seed) {
+		Random random = new Random(seed);
+		int length = FrameDecoder.FRAME_LENGTH + 1;
+		byte[] stream = new byte[frames * length];
+		for (int f = 0; f < frames; f++) {
+			int o = f * length;
+			for (int i = 2; i < FrameDecoder.FRAME_LENGTH; i++) {
+				stream[o + i] = (byte) random.nextInt(256);
+			}
+			// Heading and angles within the bounds the decoder checks
+			put16(stream, o + 22, random.nextInt(361) - 180);
+			put16(stream, o + 78, random.nextInt(3601) - 1800);
+			put16(stream, o + 80, random.nextInt(3601) - 1800);
+			stream[o] = 'M';
+			stream[o + 1] = 18;
+			stream[o + FrameDecoder.FRAME_LENGTH] = FrameDecoder.DELIMITER;
+		}
+		return stream;
+	}
+
+	/**
+	 * Return a status stream as a noisy link delivers it: at the given
+	 * number of random places a byte is lost or sent twice.
+	 */
+	static byte[] noisyStatusStream(int frames, long seed, int errors) {
+		Random random = new Random(seed);
+		byte[] stream = statusStream(frames, seed);
+		for (int e = 0; e < errors; e++) {
+			int at = random.nextInt(stream.length);
+			byte[] noisy;
+			if (random.nextBoolean()) {
+				noisy = new byte[stream.length - 1];
+				System.arraycopy(stream, 0, noisy, 0, at);
+				System.arraycopy(stream, at + 1, noisy, at, stream.length - at - 1);
+			} else {
+				noisy = new byte[stream.length + 1];
+				System.arraycopy(stream, 0, noisy, 0, at + 1);
+				System.arraycopy(stream, at, noisy, at + 1, stream.length - at);
+			}
+			stream = noisy;
+		}
+		return stream;
+	}
+
+	private static void put16(byte[] b, int o, int value) {
+		b[o] = (byte) value;
+		b[o + 1] = (byte) (value >> 8);
+	}
+
+	/**
+	 * Return the given number of MSP replies, cycling through attitude, raw
+	 * IMU and motor messages.
+	 */
+	static byte[] mspStream(int messages, long seed) {
+		Random random = new Random(seed);
+		int[] cmds = { Msp.MSP_ATTITUDE, Msp.MSP_RAW_IMU, Msp.MSP_MOTOR };
+		int[] sizes = { 6, 18, 16 };
+		byte[] payload = new byte[Msp.MAX_PAYLOAD];
+		byte[] stream = new byte[messages * (18 + Msp.OVERHEAD)];
+		int o = 0;
+		for (int m = 0; m < messages; m++) {
+			int k = m % cmds.length;
+			random.nextBytes(payload);
+			int start = o;
+			o += Msp.encode(cmds[k], payload, sizes[k], stream, o);
+			// Make it a reply, the checksum does not cover the direction
+			stream[start + 2] = '>';
+		}
+		return Arrays.copyOf(stream, o);
+	}
+}
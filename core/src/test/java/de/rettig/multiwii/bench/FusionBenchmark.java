@@ -0,0 +1,69 @@
+package de.rettig.multiwii.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.rettig.multiwii.AttitudeFilter;
+import de.rettig.multiwii.Copter;
+
+/**
+ * Cost of one attitude filter update per decoded sample.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FusionBenchmark {
+
+	// Number of distinct samples cycled through
+	private static final int SAMPLES = 256;
+	// 50 Hz
+	private static final long STEP = 20000000L;
+
+	final AttitudeFilter filter = new AttitudeFilter();
+	final Copter[] samples = new Copter[SAMPLES];
+	int next;
+	long time;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(7);
+		for (int i = 0; i < SAMPLES; i++) {
+			Copter c = new Copter();
+			double roll = Math.toRadians(random.nextInt(60) - 30);
+			double pitch = Math.toRadians(random.nextInt(60) - 30);
+			c.ax = (int) (256 * Math.sin(roll));
+			c.ay = (int) (256 * Math.sin(pitch));
+			c.az = (int) (256 * Math.cos(roll) * Math.cos(pitch));
+			c.gx = random.nextInt(400) - 200;
+			c.gy = random.nextInt(400) - 200;
+			c.gz = random.nextInt(100) - 50;
+			c.magX = random.nextInt(300) - 150;
+			c.magY = random.nextInt(300) - 150;
+			c.magZ = -250;
+			samples[i] = c;
+		}
+	}
+
+	@Benchmark
+	public Copter update() {
+		Copter c = samples[next];
+		next = (next + 1) & (SAMPLES - 1);
+		time += STEP;
+		filter.update(c, time);
+		return c;
+	}
+}
@@ -0,0 +1,63 @@
+package de.rettig.multiwii.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.rettig.multiwii.Copter;
+import de.rettig.multiwii.LinkStats;
+import de.rettig.multiwii.PollScheduler;
+import de.rettig.multiwii.RequestTracker;
+import de.rettig.multiwii.TelemetryDispatcher;
+import de.rettig.multiwii.TelemetryPipeline;
+
+/**
+ * Latency from a chunk read off the link to the state the UI renders, the
+ * way the connection thread of the service handles it: read into its one
+ * buffer, count the bytes, hand the chunk to the {@link TelemetryPipeline}
+ * and read the published snapshot back.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PipelineBenchmark {
+
+	byte[] stream;
+	final byte[] buffer = new byte[1024];
+	final LinkStats stats = new LinkStats(10);
+	TelemetryPipeline pipeline;
+	final Copter shown = new Copter();
+
+	@Setup
+	public void setup() {
+		// One frame with its delimiter per chunk
+		stream = Frames.statusStream(1, 3);
+		PollScheduler.Sender sender = new PollScheduler.Sender() {
+			public void send(byte[] request) {
+			}
+		};
+		pipeline = new TelemetryPipeline(sender, new TelemetryDispatcher(), new RequestTracker(),
+				stats, 30 * 60 * 50, 500);
+	}
+
+	@Benchmark
+	public Copter chunkToState() {
+		System.arraycopy(stream, 0, buffer, 0, stream.length);
+		stats.add(LinkStats.BYTES_IN, stream.length);
+		pipeline.onData(buffer, 0, stream.length, 0);
+		pipeline.getSnapshot().read(shown);
+		return shown;
+	}
+}
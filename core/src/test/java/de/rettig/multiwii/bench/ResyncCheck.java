@@ -0,0 +1,106 @@
+package de.rettig.multiwii.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import de.rettig.multiwii.Copter;
+import de.rettig.multiwii.FrameDecoder;
+import de.rettig.multiwii.StreamDecoder;
+
+/**
+ * Feeds a status stream in which every eighth frame lost or repeated one
+ * byte through a {@link FrameDecoder}, in chunks of different sizes, and
+ * matches every decoded frame against the frames sent. Counts the frames
+ * decoded out of step, i.e. matching no frame sent, and the intact frames
+ * that were lost. Exits with status 1 if an intact frame was lost or more
+ * than 1% of the damaged frames were decoded out of step. The stream is
+ * built from a fixed seed, so the counts are the same on every run.
+ *
+ * <pre>mvn -Pstress verify -Dresync.args="[frames] [seed]"</pre>
+ * Defaults are 20000 frames with seed 1.
+ */
+public class ResyncCheck {
+
+	private static final int LENGTH = FrameDecoder.FRAME_LENGTH + 1;
+	private static final int DAMAGE_EVERY = 8;
+	private static final int[] CHUNK_SIZES = { 1, 16, 155, 1024 };
+
+	public static void main(String[] args) {
+		int frames = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+
+		byte[] clean = Frames.statusStream(frames, seed);
+		boolean[] damaged = new boolean[frames];
+		byte[] noisy = damage(clean, frames, damaged, new Random(seed));
+		int damagedCount = frames / DAMAGE_EVERY;
+
+		// Every frame sent, by its decoded values
+		final Map<String, Integer> sent = new HashMap<String, Integer>();
+		Copter c = new Copter();
+		for (int f = 0; f < frames; f++) {
+			FrameDecoder.decodeFrame(clean, f * LENGTH, c);
+			sent.put(key(c), f);
+		}
+
+		boolean failed = false;
+		System.out.printf("%d frames, %d damaged%n", frames, damagedCount);
+		System.out.printf("%8s %10s %12s %12s %10s%n", "chunk", "decoded", "out of step", "intact lost", "resyncs");
+		for (int chunk : CHUNK_SIZES) {
+			final boolean[] received = new boolean[frames];
+			final int[] outOfStep = new int[1];
+			FrameDecoder decoder = new FrameDecoder();
+			decoder.setListener(new StreamDecoder.Listener() {
+				public void onDecoded(Copter copter) {
+					Integer f = sent.get(key(copter));
+					if (f == null) outOfStep[0]++;
+					else received[f] = true;
+				}
+			});
+			int decoded = 0;
+			for (int o = 0; o < noisy.length; o += chunk) {
+				decoded += decoder.decode(noisy, o, Math.min(chunk, noisy.length - o), c);
+			}
+			int lost = 0;
+			for (int f = 0; f < frames; f++) {
+				if (!damaged[f] && !received[f]) lost++;
+			}
+			System.out.printf("%8d %10d %12d %12d %10d%n", chunk, decoded, outOfStep[0], lost, decoder.getResyncCount());
+			if (lost > 0 || outOfStep[0] * 100 > damagedCount) failed = true;
+		}
+		if (failed) {
+			System.out.println("FAILED: intact frames lost or too many frames out of step");
+			System.exit(1);
+		}
+	}
+
+	// Copy the stream, dropping or repeating one random byte of every
+	// eighth frame
+	private static byte[] damage(byte[] clean, int frames, boolean[] damaged, Random random) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(clean.length + frames);
+		for (int f = 0; f < frames; f++) {
+			int o = f * LENGTH;
+			if (f % DAMAGE_EVERY != DAMAGE_EVERY - 1) {
+				out.write(clean, o, LENGTH);
+				continue;
+			}
+			damaged[f] = true;
+			int at = random.nextInt(LENGTH);
+			if (random.nextBoolean()) {
+				out.write(clean, o, at);
+				out.write(clean, o + at + 1, LENGTH - at - 1);
+			} else {
+				out.write(clean, o, at + 1);
+				out.write(clean, o + at, LENGTH - at);
+			}
+		}
+		return out.toByteArray();
+	}
+
+	private static String key(Copter c) {
+		return c.ax + " " + c.ay + " " + c.az + " " + c.gx + " " + c.gy + " " + c.gz + " "
+				+ c.magX + " " + c.magY + " " + c.magZ + " " + c.baro + " " + c.head + " "
+				+ c.angleX + " " + c.angleY;
+	}
+}
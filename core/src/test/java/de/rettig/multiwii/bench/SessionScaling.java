@@ -0,0 +1,112 @@
+package de.rettig.multiwii.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+
+import de.rettig.multiwii.CopterSession;
+import de.rettig.multiwii.LatencyHistogram;
+import de.rettig.multiwii.LinkStats;
+import de.rettig.multiwii.PipeTransport;
+import de.rettig.multiwii.SharedWriter;
+import de.rettig.multiwii.SimulatedMultiWii;
+
+/**
+ * Runs growing numbers of {@link CopterSession}s against simulated copters
+ * over in-memory pipes and reports, per session, the frame rate, the
+ * request round trip and the CPU time of its reading thread, plus the CPU
+ * time of the shared writer's threads.
+ *
+ * <pre>mvn -Pscaling verify -Dscaling.args="[sessions,...] [seconds] [replies per second]"</pre>
+ * Defaults are 1,4,16,64 sessions for 5 s each at 50 replies per second.
+ */
+public class SessionScaling {
+
+	// Time before measuring, so every session is connected and polling
+	private static final long WARMUP_MILLIS = 1000;
+
+	public static void main(String[] args) throws Exception {
+		String[] counts = (args.length > 0 ? args[0] : "1,4,16,64").split(",");
+		long seconds = args.length > 1 ? Long.parseLong(args[1]) : 5;
+		float rate = args.length > 2 ? Float.parseFloat(args[2]) : 50;
+
+		ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		System.out.printf("%d s per run, simulated copters answer at most %.0f/s%n", seconds, rate);
+		System.out.printf("%8s %10s %10s %10s %10s %12s %12s%n",
+				"sessions", "frames/s", "p50 ms", "p99 ms", "max ms", "cpu %/sess", "writer cpu %");
+		for (String count : counts) {
+			run(Integer.parseInt(count.trim()), seconds, rate, mx);
+		}
+	}
+
+	private static void run(int n, long seconds, float rate, ThreadMXBean mx) throws Exception {
+		SharedWriter writer = new SharedWriter(CopterSession.WRITE_BATCH_SIZE, 10);
+		Thread writerThread = new Thread(writer, "SharedWriter");
+		writerThread.start();
+
+		CopterSession[] sessions = new CopterSession[n];
+		Thread[] readers = new Thread[n];
+		SimulatedMultiWii[] copters = new SimulatedMultiWii[n];
+		for (int i = 0; i < n; i++) {
+			PipeTransport[] pair = PipeTransport.createPair("copter-" + i);
+			copters[i] = new SimulatedMultiWii(pair[1], rate, i);
+			new Thread(copters[i], "Simulated-" + i).start();
+			sessions[i] = new CopterSession(pair[0], writer);
+			readers[i] = new Thread(sessions[i], "Session-" + i);
+			readers[i].start();
+		}
+
+		Thread.sleep(WARMUP_MILLIS);
+		long[] cpu = new long[n];
+		long[] frames = new long[n];
+		for (int i = 0; i < n; i++) {
+			sessions[i].getRequestTracker().getRoundTrip().reset();
+			frames[i] = sessions[i].getLinkStats().get(LinkStats.FRAMES);
+			cpu[i] = mx.getThreadCpuTime(readers[i].getId());
+		}
+		long writerCpu = writerCpu(mx);
+		long start = System.nanoTime();
+
+		Thread.sleep(seconds * 1000);
+
+		long elapsed = System.nanoTime() - start;
+		writerCpu = writerCpu(mx) - writerCpu;
+		double frameRate = 0;
+		double cpuShare = 0;
+		long p50 = 0;
+		long p99 = 0;
+		long max = 0;
+		for (int i = 0; i < n; i++) {
+			frameRate += (sessions[i].getLinkStats().get(LinkStats.FRAMES) - frames[i]) * 1e9 / elapsed;
+			cpuShare += (double) (mx.getThreadCpuTime(readers[i].getId()) - cpu[i]) / elapsed;
+			LatencyHistogram h = sessions[i].getRequestTracker().getRoundTrip();
+			p50 += h.getPercentile(50);
+			p99 += h.getPercentile(99);
+			max = Math.max(max, h.getMax());
+		}
+		System.out.printf("%8d %10.1f %10.2f %10.2f %10.2f %12.3f %12.3f%n",
+				n, frameRate / n, p50 / 1e6 / n, p99 / 1e6 / n, max / 1e6,
+				100 * cpuShare / n, 100.0 * writerCpu / elapsed);
+
+		for (int i = 0; i < n; i++) {
+			sessions[i].close();
+			copters[i].stop();
+		}
+		writer.stop();
+		for (int i = 0; i < n; i++) {
+			readers[i].join();
+		}
+		writerThread.join();
+	}
+
+	// CPU time of the writer thread and its pool threads still alive
+	private static long writerCpu(ThreadMXBean mx) {
+		long cpu = 0;
+		for (ThreadInfo info : mx.getThreadInfo(mx.getAllThreadIds())) {
+			if (info != null && info.getThreadName().startsWith("SharedWriter")) {
+				cpu += Math.max(0, mx.getThreadCpuTime(info.getThreadId()));
+			}
+		}
+		return cpu;
+	}
+}
@@ -0,0 +1,126 @@
+package de.rettig.multiwii.bench;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.rettig.multiwii.Copter;
+import de.rettig.multiwii.CopterSnapshot;
+
+/**
+ * Hammers a {@link CopterSnapshot} with one writer publishing as fast as
+ * it can and several readers copying concurrently. Every published state
+ * is derived from a single counter, so a reader can tell a torn copy, one
+ * mixing two states, from a consistent one. Versions must never go back.
+ * Exits with status 1 if any reader saw a torn or stale state.
+ *
+ * <pre>mvn -Pstress verify -Dstress.args="[readers] [seconds]"</pre>
+ * Defaults are 3 readers for 5 s.
+ */
+public class SnapshotStress {
+
+	public static void main(String[] args) throws Exception {
+		int readers = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		long seconds = args.length > 1 ? Long.parseLong(args[1]) : 5;
+
+		final CopterSnapshot snapshot = new CopterSnapshot();
+		final AtomicBoolean stop = new AtomicBoolean();
+		final AtomicLong published = new AtomicLong();
+		final AtomicLong reads = new AtomicLong();
+		final AtomicLong failures = new AtomicLong();
+
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				Copter c = new Copter();
+				int n = 0;
+				while (!stop.get()) {
+					fill(c, ++n);
+					snapshot.publish(c);
+				}
+				published.set(n);
+			}
+		}, "Writer");
+
+		Thread[] threads = new Thread[readers];
+		for (int r = 0; r < readers; r++) {
+			threads[r] = new Thread(new Runnable() {
+				public void run() {
+					Copter c = new Copter();
+					Copter expected = new Copter();
+					long last = -1;
+					long count = 0;
+					while (!stop.get()) {
+						long version = snapshot.read(c);
+						count++;
+						if (version < last || !consistent(c, version, expected)) {
+							if (failures.incrementAndGet() <= 10) {
+								System.out.println("torn or stale: version " + version + " after " + last
+										+ ", ax " + c.ax + " angleY " + c.angleY + " motor7 " + c.motor[7]
+										+ " requestTime " + c.requestTime);
+							}
+						}
+						last = version;
+					}
+					reads.addAndGet(count);
+				}
+			}, "Reader-" + r);
+		}
+
+		writer.start();
+		for (Thread t : threads) t.start();
+		Thread.sleep(seconds * 1000);
+		stop.set(true);
+		writer.join();
+		for (Thread t : threads) t.join();
+
+		System.out.printf("%d readers, %d s: %d states published, %d read, %d torn or stale%n",
+				readers, seconds, published.get(), reads.get(), failures.get());
+		if (failures.get() > 0) System.exit(1);
+	}
+
+	// Derive every value of state n from n
+	private static void fill(Copter c, int n) {
+		c.ax = n;
+		c.ay = -n;
+		c.az = n + 1;
+		c.gx = n + 2;
+		c.gy = n + 3;
+		c.gz = n + 4;
+		c.magX = n + 5;
+		c.magY = n + 6;
+		c.magZ = n + 7;
+		c.baro = n + 8;
+		c.head = n + 9;
+		c.angleX = n + 10;
+		c.angleY = n + 11;
+		c.cycleTime = n + 12;
+		c.i2cErrors = n + 13;
+		c.fusedRoll = n;
+		c.fusedPitch = -n;
+		c.fusedHeading = n / 2f;
+		c.requestTime = (long) n << 32 | n;
+		for (int i = 0; i < 8; i++) {
+			c.motor[i] = n * 8 + i;
+			c.rc[i] = n ^ i;
+		}
+	}
+
+	// Check a copy against the state its version says it is
+	private static boolean consistent(Copter c, long version, Copter expected) {
+		if (version == 0) return c.ax == 0 && c.motor[7] == 0;
+		fill(expected, (int) version);
+		if (c.ax != expected.ax || c.ay != expected.ay || c.az != expected.az
+				|| c.gx != expected.gx || c.gy != expected.gy || c.gz != expected.gz
+				|| c.magX != expected.magX || c.magY != expected.magY || c.magZ != expected.magZ
+				|| c.baro != expected.baro || c.head != expected.head
+				|| c.angleX != expected.angleX || c.angleY != expected.angleY
+				|| c.cycleTime != expected.cycleTime || c.i2cErrors != expected.i2cErrors
+				|| c.fusedRoll != expected.fusedRoll || c.fusedPitch != expected.fusedPitch
+				|| c.fusedHeading != expected.fusedHeading || c.requestTime != expected.requestTime) {
+			return false;
+		}
+		for (int i = 0; i < 8; i++) {
+			if (c.motor[i] != expected.motor[i] || c.rc[i] != expected.rc[i]) return false;
+		}
+		return true;
+	}
+}
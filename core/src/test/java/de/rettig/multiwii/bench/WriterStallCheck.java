@@ -0,0 +1,108 @@
+package de.rettig.multiwii.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.rettig.multiwii.SharedWriter;
+import de.rettig.multiwii.WriteQueue;
+
+/**
+ * Serves a few links from one {@link SharedWriter} while one of them
+ * stalls in OutputStream.write() for the whole run, like a congested
+ * Bluetooth link. Every link queues a message on every tick. Exits with
+ * status 1 if a healthy link was not ticked or not written at least half
+ * as often as the ticks allow, i.e. if the stalled link held them up.
+ *
+ * <pre>mvn -Pstress verify -Dstall.args="[links] [seconds]"</pre>
+ * Defaults are 4 links for 2 s.
+ */
+public class WriterStallCheck {
+
+	private static final long TICK_MILLIS = 10;
+	private static final byte[] MESSAGE = { 'M' };
+
+	static class Link implements SharedWriter.Link {
+		final WriteQueue queue = new WriteQueue(16, 64);
+		final AtomicLong ticks = new AtomicLong();
+		final AtomicLong written = new AtomicLong();
+		final OutputStream out;
+
+		Link(OutputStream out) {
+			this.out = out;
+		}
+
+		public WriteQueue getWriteQueue() {
+			return queue;
+		}
+
+		public OutputStream getOutputStream() {
+			return out;
+		}
+
+		public void onWritten(int messages, int bytes, long start, long end) {
+			written.addAndGet(messages);
+		}
+
+		public void onWriteFailed(IOException e) {
+		}
+
+		public void onTick(long now) {
+			ticks.incrementAndGet();
+			queue.offer(MESSAGE, false);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int links = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		long seconds = args.length > 1 ? Long.parseLong(args[1]) : 2;
+
+		final CountDownLatch release = new CountDownLatch(1);
+		SharedWriter writer = new SharedWriter(64, TICK_MILLIS);
+		Link stalled = new Link(new OutputStream() {
+			public void write(int b) throws IOException {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new IOException("interrupted");
+				}
+			}
+		});
+		writer.add(stalled);
+		Link[] healthy = new Link[links - 1];
+		for (int i = 0; i < healthy.length; i++) {
+			healthy[i] = new Link(new OutputStream() {
+				public void write(int b) {
+				}
+
+				public void write(byte[] b, int off, int len) {
+				}
+			});
+			writer.add(healthy[i]);
+		}
+
+		Thread thread = new Thread(writer, "SharedWriter");
+		thread.start();
+		Thread.sleep(seconds * 1000);
+		writer.stop();
+		thread.join();
+		release.countDown();
+
+		long expected = seconds * 1000 / TICK_MILLIS;
+		boolean failed = false;
+		System.out.printf("%d links, one stalled, %d s, %d ticks expected%n", links, seconds, expected);
+		System.out.printf("%8s %10s %10s%n", "link", "ticks", "written");
+		System.out.printf("%8s %10d %10d%n", "stalled", stalled.ticks.get(), stalled.written.get());
+		for (int i = 0; i < healthy.length; i++) {
+			long ticks = healthy[i].ticks.get();
+			long written = healthy[i].written.get();
+			System.out.printf("%8d %10d %10d%n", i, ticks, written);
+			if (ticks < expected / 2 || written < expected / 2) failed = true;
+		}
+		if (failed) {
+			System.out.println("FAILED: the stalled link held up the others");
+			System.exit(1);
+		}
+	}
+}
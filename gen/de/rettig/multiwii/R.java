@@ -19,26 +19,40 @@ public final class R {
     public static final class id {
         public static final int AbsoluteLayout1=0x7f060007;
         public static final int TableLayout1=0x7f06000c;
+        public static final int add_copter=0x7f06001f;
+        public static final int add_simulator=0x7f060020;
         public static final int button_scan=0x7f060006;
         public static final int button_send=0x7f060013;
+        public static final int charts=0x7f06001d;
+        public static final int connect_simulator=0x7f060019;
         public static final int discoverable=0x7f060015;
+        public static final int fusion=0x7f06001e;
         public static final int imageView1=0x7f060011;
         public static final int imageViewPitch=0x7f06000e;
         public static final int imageViewRoll=0x7f06000f;
+        public static final int known_devices=0x7f060023;
         public static final int linearLayout1=0x7f060008;
+        public static final int link_stats=0x7f06001a;
+        public static final int link_stats_toggle=0x7f06001b;
         public static final int new_devices=0x7f060005;
         public static final int paired_devices=0x7f060003;
         public static final int progressBar1=0x7f060009;
         public static final int progressBar2=0x7f06000a;
         public static final int progressBar3=0x7f06000b;
+        public static final int record=0x7f060017;
+        public static final int replay=0x7f060018;
         public static final int secure_connect_scan=0x7f060014;
         public static final int seekBar1=0x7f060012;
+        public static final int sessions=0x7f060021;
+        public static final int strip_chart=0x7f06001c;
         public static final int tableRow1=0x7f06000d;
         public static final int tableRow2=0x7f060010;
+        public static final int title_known_devices=0x7f060022;
         public static final int title_left_text=0x7f060000;
         public static final int title_new_devices=0x7f060004;
         public static final int title_paired_devices=0x7f060002;
         public static final int title_right_text=0x7f060001;
+        public static final int use_msp=0x7f060016;
     }
     public static final class layout {
         public static final int custom_title=0x7f030000;
@@ -51,14 +65,25 @@ public final class R {
         public static final int option_menu=0x7f050000;
     }
     public static final class string {
+        public static final int add_copter=0x7f04001b;
+        public static final int add_simulator=0x7f04001c;
         public static final int app_name=0x7f040000;
-        public static final int bt_not_enabled_leaving=0x7f040003;
+        public static final int bt_not_enabled=0x7f040003;
         public static final int button_scan=0x7f04000d;
+        public static final int charts=0x7f040019;
+        public static final int connect_simulator=0x7f040017;
         public static final int discoverable=0x7f040010;
+        public static final int fusion=0x7f04001a;
         public static final int insecure_connect=0x7f04000f;
+        public static final int link_stats=0x7f040018;
+        public static final int no_recording=0x7f040015;
         public static final int none_found=0x7f04000a;
         public static final int none_paired=0x7f040009;
         public static final int not_connected=0x7f040002;
+        public static final int record=0x7f040012;
+        public static final int recording_failed=0x7f040013;
+        public static final int replay=0x7f040014;
+        public static final int replay_while_connected=0x7f040016;
         /**   DeviceListActivity 
          */
         public static final int scanning=0x7f040007;
@@ -71,9 +96,11 @@ public final class R {
         public static final int send=0x7f040001;
         public static final int title_connected_to=0x7f040005;
         public static final int title_connecting=0x7f040004;
+        public static final int title_known_devices=0x7f04001d;
         public static final int title_not_connected=0x7f040006;
         public static final int title_other_devices=0x7f04000c;
         public static final int title_paired_devices=0x7f04000b;
+        public static final int use_msp=0x7f040011;
     }
     public static final class styleable {
         /** Attributes that can be used with a HelloGallery.
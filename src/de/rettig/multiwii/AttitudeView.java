@@ -0,0 +1,86 @@
+package de.rettig.multiwii;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * Shows a picture of the copter rotated by a roll, pitch or heading angle.
+ * The picture is rotated while drawing it on the Canvas, so changing the
+ * angle neither creates a Bitmap nor any other object. The view only
+ * invalidates itself when the angle actually changed.
+ */
+public class AttitudeView extends View {
+
+	private final Matrix mMatrix = new Matrix();
+	private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.ANTI_ALIAS_FLAG);
+	private Bitmap mBitmap;
+	private float mAngle;
+
+	public AttitudeView(Context context) {
+		super(context);
+	}
+
+	public AttitudeView(Context context, AttributeSet attrs) {
+		super(context, attrs);
+	}
+
+	public AttitudeView(Context context, AttributeSet attrs, int defStyle) {
+		super(context, attrs, defStyle);
+	}
+
+	/**
+	 * Set the picture to rotate. The Bitmap is drawn as is and not copied.
+	 * @param bitmap  The picture, or null to draw nothing
+	 */
+	public void setBitmap(Bitmap bitmap) {
+		if (bitmap == mBitmap) return;
+		mBitmap = bitmap;
+		requestLayout();
+		invalidate();
+	}
+
+	/**
+	 * Set the rotation of the picture.
+	 * @param degrees  Clockwise rotation in degrees
+	 */
+	public void setAngle(float degrees) {
+		if (degrees == mAngle) return;
+		mAngle = degrees;
+		invalidate();
+	}
+
+	/**
+	 * Return the current rotation of the picture in degrees. */
+	public float getAngle() {
+		return mAngle;
+	}
+
+	@Override
+	protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+		// Reserve the diagonal so the picture fits at any angle
+		int size = 0;
+		if (mBitmap != null) {
+			int w = mBitmap.getWidth();
+			int h = mBitmap.getHeight();
+			size = (int) Math.ceil(Math.sqrt(w * w + h * h));
+		}
+		setMeasuredDimension(
+				resolveSize(size + getPaddingLeft() + getPaddingRight(), widthMeasureSpec),
+				resolveSize(size + getPaddingTop() + getPaddingBottom(), heightMeasureSpec));
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		if (mBitmap == null) return;
+		float cx = getPaddingLeft() + (getWidth() - getPaddingLeft() - getPaddingRight()) / 2f;
+		float cy = getPaddingTop() + (getHeight() - getPaddingTop() - getPaddingBottom()) / 2f;
+		mMatrix.setTranslate(cx - mBitmap.getWidth() / 2f, cy - mBitmap.getHeight() / 2f);
+		mMatrix.postRotate(mAngle, cx, cy);
+		canvas.drawBitmap(mBitmap, mMatrix, mPaint);
+	}
+}
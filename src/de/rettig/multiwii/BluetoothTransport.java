@@ -0,0 +1,94 @@
+package de.rettig.multiwii;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+/**
+ * A {@link Transport} over a Bluetooth RFCOMM socket.
+ */
+public class BluetoothTransport implements Transport {
+	private static final String TAG = "BluetoothTransport";
+
+	// BluetoothDevice.createRfcommSocket(int), resolved once
+	private static Method sCreateRfcommSocket;
+
+	private final BluetoothSocket mSocket;
+	private final BluetoothDevice mDevice;
+
+	/**
+	 * Constructor for an outgoing connection to RFCOMM channel 1 of the
+	 * device, which is where the usual serial Bluetooth modules listen.
+	 * @param device  The BluetoothDevice to connect
+	 */
+	public BluetoothTransport(BluetoothDevice device) {
+		mDevice = device;
+		BluetoothSocket tmp = null;
+		try {
+			tmp = (BluetoothSocket) createRfcommSocket().invoke(device, 1);
+		} catch (Exception e) {
+			Log.e(TAG, "createRfcommSocket failed", e);
+		}
+		mSocket = tmp;
+	}
+
+	/**
+	 * Constructor for a connection that is already established, e.g. one
+	 * accepted by a BluetoothServerSocket.
+	 */
+	public BluetoothTransport(BluetoothSocket socket) {
+		mSocket = socket;
+		mDevice = socket.getRemoteDevice();
+	}
+
+	public void connect() throws IOException {
+		if (mSocket == null) throw new IOException("no socket for " + mDevice);
+		mSocket.connect();
+	}
+
+	public InputStream getInputStream() throws IOException {
+		return mSocket.getInputStream();
+	}
+
+	public OutputStream getOutputStream() throws IOException {
+		return mSocket.getOutputStream();
+	}
+
+	public void close() throws IOException {
+		if (mSocket != null) mSocket.close();
+	}
+
+	public String getName() {
+		return mDevice.getName();
+	}
+
+	/**
+	 * Return the remote device. */
+	public BluetoothDevice getDevice() {
+		return mDevice;
+	}
+
+	/**
+	 * Return a factory of outgoing connections to the given device.
+	 */
+	public static Transport.Factory factory(final BluetoothDevice device) {
+		return new Transport.Factory() {
+			public Transport create() {
+				return new BluetoothTransport(device);
+			}
+		};
+	}
+
+	// The lookup is slow on old devices and the same for every connection
+	private static synchronized Method createRfcommSocket() throws NoSuchMethodException {
+		if (sCreateRfcommSocket == null) {
+			sCreateRfcommSocket = BluetoothDevice.class.getMethod("createRfcommSocket", new Class[] {int.class});
+		}
+		return sCreateRfcommSocket;
+	}
+}
@@ -1,19 +0,0 @@
-package de.rettig.multiwii;
-
-public class Copter {
-
-	public int ax;
-	public int angleY;
-	public int angleX;
-	public int ay;
-	public int az;
-	public int gx;
-	public int gy;
-	public int gz;
-	public int magX;
-	public int magY;
-	public int magZ;
-	public int baro;
-	public int head;
-
-}
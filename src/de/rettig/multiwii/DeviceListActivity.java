@@ -16,6 +16,7 @@
 
 package de.rettig.multiwii;
 
+import java.util.HashSet;
 import java.util.Set;
 
 import android.app.Activity;
@@ -26,6 +27,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
+import android.text.format.DateUtils;
 import android.util.Log;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -38,10 +40,12 @@ import android.widget.ListView;
 import android.widget.TextView;
 
 /**
- * This Activity appears as a dialog. It lists any paired devices and
- * devices detected in the area after discovery. When a device is chosen
- * by the user, the MAC address of the device is sent back to the parent
- * Activity in the result Intent.
+ * This Activity appears as a dialog. It lists the devices connected to
+ * before, most recent first, then any other paired devices, and devices
+ * detected in the area by a discovery started right away. A known device
+ * can be picked at once, which cancels the discovery. When a device is
+ * chosen by the user, the MAC address of the device is sent back to the
+ * parent Activity in the result Intent.
  */
 public class DeviceListActivity extends Activity {
     // Debugging
@@ -53,6 +57,10 @@ public class DeviceListActivity extends Activity {
 
     // Member fields
     private BluetoothAdapter mBtAdapter;
+    private KnownDevices mKnownDevices;
+    // Addresses already listed as known or paired devices
+    private final Set<String> mListed = new HashSet<String>();
+    private ArrayAdapter<String> mKnownDevicesArrayAdapter;
     private ArrayAdapter<String> mPairedDevicesArrayAdapter;
     private ArrayAdapter<String> mNewDevicesArrayAdapter;
 
@@ -72,15 +80,20 @@ public class DeviceListActivity extends Activity {
         scanButton.setOnClickListener(new OnClickListener() {
             public void onClick(View v) {
                 doDiscovery();
-                v.setVisibility(View.GONE);
             }
         });
 
-        // Initialize array adapters. One for already paired devices and
-        // one for newly discovered devices
+        // Initialize array adapters. One for devices connected to before,
+        // one for already paired devices and one for newly discovered devices
+        mKnownDevicesArrayAdapter = new ArrayAdapter<String>(this, R.layout.device_name);
         mPairedDevicesArrayAdapter = new ArrayAdapter<String>(this, R.layout.device_name);
         mNewDevicesArrayAdapter = new ArrayAdapter<String>(this, R.layout.device_name);
 
+        // Find and set up the ListView for devices connected to before
+        ListView knownListView = (ListView) findViewById(R.id.known_devices);
+        knownListView.setAdapter(mKnownDevicesArrayAdapter);
+        knownListView.setOnItemClickListener(mDeviceClickListener);
+
         // Find and set up the ListView for paired devices
         ListView pairedListView = (ListView) findViewById(R.id.paired_devices);
         pairedListView.setAdapter(mPairedDevicesArrayAdapter);
@@ -102,19 +115,35 @@ public class DeviceListActivity extends Activity {
         // Get the local Bluetooth adapter
         mBtAdapter = BluetoothAdapter.getDefaultAdapter();
 
+        // Devices connected to before come first, with how well that went
+        mKnownDevices = new KnownDevices(this);
+        for (DeviceCache.Entry entry : mKnownDevices.load().getEntries()) {
+            if (entry.getLastConnected() == 0) continue;
+            findViewById(R.id.title_known_devices).setVisibility(View.VISIBLE);
+            mListed.add(entry.getAddress());
+            mKnownDevicesArrayAdapter.add(entry.getName() + "  "
+                    + Math.round(entry.getSuccessRate() * 100) + "% of " + entry.getAttempts() + ", "
+                    + DateUtils.getRelativeTimeSpanString(entry.getLastConnected())
+                    + "\n" + entry.getAddress());
+        }
+
         // Get a set of currently paired devices
         Set<BluetoothDevice> pairedDevices = mBtAdapter.getBondedDevices();
 
-        // If there are paired devices, add each one to the ArrayAdapter
-        if (pairedDevices.size() > 0) {
+        // If there are other paired devices, add each one to the ArrayAdapter
+        for (BluetoothDevice device : pairedDevices) {
+            if (!mListed.add(device.getAddress())) continue;
+            mPairedDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
+        }
+        if (mPairedDevicesArrayAdapter.getCount() > 0) {
             findViewById(R.id.title_paired_devices).setVisibility(View.VISIBLE);
-            for (BluetoothDevice device : pairedDevices) {
-                mPairedDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
-            }
-        } else {
+        } else if (mKnownDevicesArrayAdapter.getCount() == 0) {
             String noDevices = getResources().getText(R.string.none_paired).toString();
             mPairedDevicesArrayAdapter.add(noDevices);
         }
+
+        // Look for new devices in the background while the known ones can be picked
+        doDiscovery();
     }
 
     @Override
@@ -139,6 +168,7 @@ public class DeviceListActivity extends Activity {
         // Indicate scanning in the title
         setProgressBarIndeterminateVisibility(true);
         setTitle(R.string.scanning);
+        findViewById(R.id.button_scan).setVisibility(View.GONE);
 
         // Turn on sub-title for new devices
         findViewById(R.id.title_new_devices).setVisibility(View.VISIBLE);
@@ -183,14 +213,17 @@ public class DeviceListActivity extends Activity {
             if (BluetoothDevice.ACTION_FOUND.equals(action)) {
                 // Get the BluetoothDevice object from the Intent
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                // If it's already paired, skip it, because it's been listed already
-                if (device.getBondState() != BluetoothDevice.BOND_BONDED) {
+                mKnownDevices.onSeen(device.getAddress(), device.getName());
+                // If it's known or paired, skip it, because it's been listed already
+                if (!mListed.contains(device.getAddress())) {
+                    mListed.add(device.getAddress());
                     mNewDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
                 }
             // When discovery is finished, change the Activity title
             } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
                 setProgressBarIndeterminateVisibility(false);
                 setTitle(R.string.select_device);
+                findViewById(R.id.button_scan).setVisibility(View.VISIBLE);
                 if (mNewDevicesArrayAdapter.getCount() == 0) {
                     String noDevices = getResources().getText(R.string.none_found).toString();
                     mNewDevicesArrayAdapter.add(noDevices);
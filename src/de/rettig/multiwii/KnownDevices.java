@@ -0,0 +1,70 @@
+package de.rettig.multiwii;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * The {@link DeviceCache} of MultiWii devices connected to before, kept in
+ * the SharedPreferences of the app. Every update reads, changes and writes
+ * the whole cache, which is small; the service records connection attempts
+ * while the DeviceListActivity shows and refreshes the cache.
+ */
+public class KnownDevices {
+
+	private static final String PREFERENCES = "known_devices";
+	private static final String KEY_DEVICES = "devices";
+	private static final int CAPACITY = 16;
+
+	// Serializes the read-modify-write of every instance
+	private static final Object sLock = new Object();
+
+	private final SharedPreferences mPreferences;
+
+	public KnownDevices(Context context) {
+		mPreferences = context.getApplicationContext().getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+	}
+
+	/**
+	 * Return a copy of the cache, the most recently connected devices first.
+	 */
+	public DeviceCache load() {
+		synchronized (sLock) {
+			DeviceCache cache = new DeviceCache(CAPACITY);
+			cache.decode(mPreferences.getString(KEY_DEVICES, null));
+			return cache;
+		}
+	}
+
+	/**
+	 * Record an attempt to connect.
+	 * @param address  The hardware address of the device
+	 * @param name  The name of the device, may be null
+	 * @param connected  true if the connection was made
+	 */
+	public void onConnect(String address, String name, boolean connected) {
+		synchronized (sLock) {
+			DeviceCache cache = load();
+			cache.onConnect(address, name, connected, System.currentTimeMillis());
+			save(cache);
+		}
+	}
+
+	/**
+	 * Record that a device was found by an inquiry. Only devices connected
+	 * to before are updated, so nothing is written for others.
+	 * @param address  The hardware address of the device
+	 * @param name  The name of the device, may be null
+	 */
+	public void onSeen(String address, String name) {
+		synchronized (sLock) {
+			DeviceCache cache = load();
+			if (cache.get(address) == null) return;
+			cache.onSeen(address, name, System.currentTimeMillis());
+			save(cache);
+		}
+	}
+
+	private void save(DeviceCache cache) {
+		mPreferences.edit().putString(KEY_DEVICES, cache.encode()).commit();
+	}
+}
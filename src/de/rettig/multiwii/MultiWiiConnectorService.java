@@ -16,11 +16,15 @@
 
 package de.rettig.multiwii;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -30,13 +34,25 @@ import android.content.Context;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
  * This class does all the work for setting up and managing Bluetooth
  * connections with other devices. It has a thread that listens for
  * incoming connections, a thread for connecting with a device, and a
- * thread for performing data transmissions when connected.
+ * thread for performing data transmissions when connected. Connections
+ * are made through a {@link Transport}, so besides Bluetooth devices the
+ * service can also talk to e.g. a {@link SimulatedMultiWii} over TCP.
+ *
+ * The main connection is decoded by a {@link TelemetryPipeline} on the
+ * thread reading it; the UI Activity only gets the decoded state and the
+ * events it registered for as a {@link TelemetryListener}. Besides the
+ * main connection, any number of further copters can be monitored as
+ * {@link CopterSession}s.
+ * Each of them only adds a reading thread; a {@link SharedWriter} writes
+ * for all connections and ticks them, so a stalled link blocks only the
+ * thread writing it.
  */
 public class MultiWiiConnectorService {
 	// Debugging
@@ -50,13 +66,63 @@ public class MultiWiiConnectorService {
 	private static final UUID MY_UUID_SECURE =
 			UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
 
+	private static final int READ_BUFFER_SIZE = 1024;
+	// Decoded states of the last 30 minutes at 50 Hz, about 3 MB
+	private static final int HISTORY_CAPACITY = 30 * 60 * 50;
+	// Link statistics are sampled this often, in ms
+	private static final long STATS_INTERVAL = 500;
+	// Time given to the copter between connecting and polling, in ms
+	private static final long POLL_START_DELAY = 1000;
+
+	// Outgoing messages waiting for the SharedWriter, and bytes written at once
+	private static final int WRITE_QUEUE_CAPACITY = 64;
+	private static final int WRITE_BATCH_SIZE = CopterSession.WRITE_BATCH_SIZE;
+	// Poll timeouts of the sessions are checked this often, in ms
+	private static final long SESSION_TICK = 10;
+
+	// Reconnect delays in ms, and how long to keep trying after a loss
+	private static final long RECONNECT_INITIAL = 100;
+	private static final long RECONNECT_MAX = 5000;
+	private static final long RECONNECT_GIVE_UP = 60 * 1000;
+
 	// Member fields
-	private final BluetoothAdapter mAdapter;
+	// Looked up on first use, null while Bluetooth is not supported
+	private volatile BluetoothAdapter mAdapter;
 	private final Handler mHandler;
+	// Bluetooth devices connected to before, shown first by the DeviceListActivity
+	private final KnownDevices mKnownDevices;
 	private AcceptThread mSecureAcceptThread;
 	private ConnectThread mConnectThread;
 	private ConnectedThread mConnectedThread;
+	private ReplayThread mReplayThread;
 	private int mState;
+	private volatile FlightRecorder mRecorder;
+	// Round trips and unanswered requests, reported by the poll schedulers
+	private final RequestTracker mRequestTracker = new RequestTracker();
+	// Rolling window of 10 samples, taken by the telemetry pipeline
+	private final LinkStats mLinkStats = new LinkStats(10);
+	private final TelemetryDispatcher mDispatcher = new TelemetryDispatcher();
+	private final PollScheduler.Sender mRequestSender = new PollScheduler.Sender() {
+		public void send(byte[] request) {
+			// Identical MSP requests may be coalesced, legacy ones are pipelined on purpose
+			write(request, mTelemetry.isMsp());
+		}
+	};
+	// Decodes the main connection on the thread reading it
+	private final TelemetryPipeline mTelemetry = new TelemetryPipeline(mRequestSender, mDispatcher,
+			mRequestTracker, mLinkStats, HISTORY_CAPACITY, STATS_INTERVAL);
+	// Time the SharedWriter spent in OutputStream.write() for the main connection
+	private final LatencyHistogram mWriteStall = new LatencyHistogram();
+	private SharedWriter mWriter;
+	private final List<CopterSession> mSessions = new CopyOnWriteArrayList<CopterSession>();
+	private final List<CopterSession> mSessionsView = Collections.unmodifiableList(mSessions);
+	// Creates the transport to reconnect to after the connection was lost, may be null
+	private Transport.Factory mReconnectFactory;
+	private final Backoff mBackoff = new Backoff(RECONNECT_INITIAL, RECONNECT_MAX, System.nanoTime());
+	// System.nanoTime() when the connection was lost, 0 unless reconnecting
+	private long mLostAt = 0;
+	// Time from losing a connection until it was made again
+	private final LatencyHistogram mReconnectGaps = new LatencyHistogram();
 
 	// Constants that indicate the current connection state
 	public static final int STATE_NONE = 0;       // we're doing nothing
@@ -70,21 +136,44 @@ public class MultiWiiConnectorService {
 	 * @param handler  A Handler to send messages back to the UI Activity
 	 */
 	public MultiWiiConnectorService(Context context, Handler handler) {
-		mAdapter = BluetoothAdapter.getDefaultAdapter();
+		mKnownDevices = new KnownDevices(context);
 		mState = STATE_NONE;
 		mHandler = handler;
 	}
 
+	/**
+	 * Return the Bluetooth adapter, looked up on first use.
+	 * @return The adapter, or null if Bluetooth is not supported
+	 */
+	private BluetoothAdapter getBluetoothAdapter() {
+		if (mAdapter == null) {
+			mAdapter = BluetoothAdapter.getDefaultAdapter();
+			// Bluetooth is not supported, only the simulator works
+			if (mAdapter == null && D) Log.d(TAG, "Bluetooth is not available");
+		}
+		return mAdapter;
+	}
+
 	/**
 	 * Set the current state of the chat connection
 	 * @param state  An integer defining the current connection state
 	 */
 	private synchronized void setState(int state) {
+		setState(state, -1);
+	}
+
+	/**
+	 * Set the current state of the chat connection
+	 * @param state  An integer defining the current connection state
+	 * @param detail  1 when STATE_CONNECTED is a reconnect
+	 */
+	private synchronized void setState(int state, int detail) {
 		if (D) Log.d(TAG, "setState() " + mState + " -> " + state);
 		mState = state;
+		if (state != STATE_CONNECTED) mTelemetry.stopPolling();
 
-		// Give the new state to the Handler so the UI Activity can update
-		mHandler.obtainMessage(MultiWiiMainActivity.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
+		// Tell the listeners so the UI Activity can update
+		mDispatcher.fireStateChanged(state, detail == 1);
 	}
 
 	/**
@@ -106,9 +195,17 @@ public class MultiWiiConnectorService {
 		if (mConnectedThread != null) {mConnectedThread.cancel(); mConnectedThread = null;}
 
 		setState(STATE_LISTEN);
+		listen();
+	}
 
-		// Start the thread to listen on a BluetoothServerSocket
-		if (mSecureAcceptThread == null) {
+	/**
+	 * Start the thread to listen on a BluetoothServerSocket, unless it is
+	 * running already or Bluetooth is off. Call again once Bluetooth was
+	 * turned on.
+	 */
+	public synchronized void listen() {
+		BluetoothAdapter adapter = getBluetoothAdapter();
+		if (mSecureAcceptThread == null && adapter != null && adapter.isEnabled()) {
 			mSecureAcceptThread = new AcceptThread();
 			mSecureAcceptThread.start();
 		}
@@ -117,10 +214,36 @@ public class MultiWiiConnectorService {
 	/**
 	 * Start the ConnectThread to initiate a connection to a remote device.
 	 * @param device  The BluetoothDevice to connect
-	 * @param secure Socket Security type - Secure (true) , Insecure (false)
 	 */
 	public synchronized void connect(BluetoothDevice device) {
-		if (D) Log.d(TAG, "connect to: " + device);
+		connect(BluetoothTransport.factory(device));
+	}
+
+	/**
+	 * Start the ConnectThread to initiate a connection, and connect again
+	 * with a new transport from the factory whenever the connection is lost.
+	 * @param factory  Creates the transports
+	 */
+	public synchronized void connect(Transport.Factory factory) {
+		mReconnectFactory = factory;
+		mLostAt = 0;
+		mBackoff.reset();
+		startConnect(factory.create(), 0);
+	}
+
+	/**
+	 * Start the ConnectThread to initiate a connection over any transport.
+	 * A lost connection is not made again.
+	 * @param transport  The unconnected Transport
+	 */
+	public synchronized void connect(Transport transport) {
+		mReconnectFactory = null;
+		mLostAt = 0;
+		startConnect(transport, 0);
+	}
+
+	private void startConnect(Transport transport, long delay) {
+		if (D) Log.d(TAG, "connect to: " + transport.getName() + " in " + delay + " ms");
 
 		// Cancel any thread attempting to make a connection
 		if (mState == STATE_CONNECTING) {
@@ -130,19 +253,21 @@ public class MultiWiiConnectorService {
 		// Cancel any thread currently running a connection
 		if (mConnectedThread != null) {mConnectedThread.cancel(); mConnectedThread = null;}
 
+		// A replay would mix with the received data
+		stopReplay();
+
 		// Start the thread to connect with the given device
-		mConnectThread = new ConnectThread(device);
+		mConnectThread = new ConnectThread(transport, delay);
 		mConnectThread.start();
 		setState(STATE_CONNECTING);
 	}
 
 	/**
-	 * Start the ConnectedThread to begin managing a Bluetooth connection
-	 * @param socket  The BluetoothSocket on which the connection was made
-	 * @param device  The BluetoothDevice that has been connected
+	 * Start the ConnectedThread to begin managing a connection
+	 * @param transport  The Transport on which the connection was made
+	 * @param socketType  Kind of connection, for logging
 	 */
-	public synchronized void connected(BluetoothSocket socket, BluetoothDevice
-			device, final String socketType) {
+	public synchronized void connected(Transport transport, final String socketType) {
 		if (D) Log.d(TAG, "connected, Socket Type:" + socketType);
 
 		// Cancel the thread that completed the connection
@@ -157,18 +282,30 @@ public class MultiWiiConnectorService {
 			mSecureAcceptThread = null;
 		}
 
+		boolean reconnected = mLostAt != 0;
+		if (reconnected) {
+			long gap = System.nanoTime() - mLostAt;
+			mReconnectGaps.record(gap);
+			mLostAt = 0;
+			toast("Reconnected after " + gap / 1000000 + " ms");
+		}
+		mBackoff.reset();
+
 		// Start the thread to manage the connection and perform transmissions
-		mConnectedThread = new ConnectedThread(socket, socketType);
+		mLinkStats.onConnected();
+		mConnectedThread = new ConnectedThread(transport, socketType, startWriter());
 		mConnectedThread.start();
+		// The copter is up already after a reconnect
+		mTelemetry.startPolling(reconnected ? 0 : POLL_START_DELAY);
 
 		// Send the name of the connected device back to the UI Activity
 		Message msg = mHandler.obtainMessage(MultiWiiMainActivity.MESSAGE_DEVICE_NAME);
 		Bundle bundle = new Bundle();
-		bundle.putString(MultiWiiMainActivity.DEVICE_NAME, device.getName());
+		bundle.putString(MultiWiiMainActivity.DEVICE_NAME, transport.getName());
 		msg.setData(bundle);
 		mHandler.sendMessage(msg);
 
-		setState(STATE_CONNECTED);
+		setState(STATE_CONNECTED, reconnected ? 1 : 0);
 	}
 
 	/**
@@ -177,6 +314,9 @@ public class MultiWiiConnectorService {
 	public synchronized void stop() {
 		if (D) Log.d(TAG, "stop");
 
+		mReconnectFactory = null;
+		mLostAt = 0;
+
 		if (mConnectThread != null) {
 			mConnectThread.cancel();
 			mConnectThread = null;
@@ -192,15 +332,75 @@ public class MultiWiiConnectorService {
 			mSecureAcceptThread = null;
 		}
 
+		stopReplay();
+
+		for (CopterSession session : mSessions) {
+			session.close();
+		}
+		if (mWriter != null) {
+			mWriter.stop();
+			mWriter = null;
+		}
+
 		setState(STATE_NONE);
 	}
 
+	// Start the writer thread unless it is running
+	private synchronized SharedWriter startWriter() {
+		if (mWriter == null) {
+			mWriter = new SharedWriter(WRITE_BATCH_SIZE, SESSION_TICK);
+			Thread thread = new Thread(mWriter, "SharedWriter");
+			thread.start();
+		}
+		return mWriter;
+	}
+
+	/**
+	 * Start monitoring a further copter besides the main connection. The
+	 * session is removed from {@link #getSessions()} when its connection
+	 * fails or is lost.
+	 * @param transport  The unconnected Transport to the copter
+	 * @return The session, connecting in the background
+	 */
+	public CopterSession addSession(Transport transport) {
+		if (D) Log.d(TAG, "add session: " + transport.getName());
+		final CopterSession session = new CopterSession(transport, startWriter());
+		mSessions.add(session);
+		Thread thread = new Thread("Session-" + transport.getName()) {
+			public void run() {
+				session.run();
+				mSessions.remove(session);
+				toast("Lost " + session.getName());
+			}
+		};
+		thread.start();
+		return session;
+	}
+
+	/**
+	 * Return the sessions added with {@link #addSession(Transport)} that
+	 * are still connecting or connected. */
+	public List<CopterSession> getSessions() {
+		return mSessionsView;
+	}
+
 	/**
-	 * Write to the ConnectedThread in an unsynchronized manner
-	 * @param out The bytes to write
-	 * @see ConnectedThread#write(byte[])
+	 * Queue bytes for the main connection. Never blocks.
+	 * @param out The bytes to write, not to be changed afterwards
+	 * @see #write(byte[], boolean)
 	 */
 	public void write(byte[] out) {
+		write(out, false);
+	}
+
+	/**
+	 * Queue bytes for the main connection. Never blocks; if the link is so
+	 * slow that the queue is full, the bytes are dropped.
+	 * @param out The bytes to write, not to be changed afterwards
+	 * @param coalesce  true to send the same array only once if it is
+	 * queued again before it was written, e.g. a repeated poll request
+	 */
+	public void write(byte[] out, boolean coalesce) {
 		// Create temporary object
 		ConnectedThread r;
 		// Synchronize a copy of the ConnectedThread
@@ -209,37 +409,163 @@ public class MultiWiiConnectorService {
 			r = mConnectedThread;
 		}
 		// Perform the write unsynchronized
-		r.write(out);
+		r.write(out, coalesce);
+	}
+
+	/**
+	 * Return the queue of the current connection, e.g. to inspect its
+	 * counters, or null if there is no connection. */
+	public synchronized WriteQueue getWriteQueue() {
+		return mConnectedThread != null ? mConnectedThread.mmQueue : null;
+	}
+
+	/**
+	 * Return the histogram of the time spent writing a batch to the
+	 * connection, which grows when the link is congested. */
+	public LatencyHistogram getWriteStall() {
+		return mWriteStall;
+	}
+
+	/**
+	 * Register a listener for decoded frames, state changes and link
+	 * statistics.
+	 * @param listener  The listener
+	 * @param executor  Runs the calls, e.g. on the UI thread; null to call
+	 *   on the decoding thread, which must not be held up
+	 */
+	public void addTelemetryListener(TelemetryListener listener, Executor executor) {
+		mDispatcher.addListener(listener, executor);
+	}
+
+	/**
+	 * Unregister a listener. */
+	public void removeTelemetryListener(TelemetryListener listener) {
+		mDispatcher.removeListener(listener);
+	}
+
+	/**
+	 * Return the decoding stage of the main connection, with the newest
+	 * state, its history and the protocol settings. */
+	public TelemetryPipeline getTelemetry() {
+		return mTelemetry;
+	}
+
+	/**
+	 * Replay a recorded session. The recorded data is decoded exactly like
+	 * data read from a device.
+	 * @param directory  Directory holding the recording
+	 * @param sessionName  Name of the recorded session
+	 * @param speed  Factor relative to real time, or {@link ReplaySource#AS_FAST_AS_POSSIBLE}
+	 * @return false if a device is connected and nothing is replayed
+	 */
+	public synchronized boolean replay(File directory, String sessionName, float speed) {
+		if (mState == STATE_CONNECTED || mState == STATE_CONNECTING) return false;
+		stopReplay();
+		mTelemetry.resetDecoder();
+		mReplayThread = new ReplayThread(new ReplaySource(directory, sessionName), speed);
+		mReplayThread.start();
+		return true;
+	}
+
+	/**
+	 * Stop a running replay.
+	 */
+	public synchronized void stopReplay() {
+		if (mReplayThread != null) {
+			mReplayThread.cancel();
+			mReplayThread = null;
+		}
+	}
+
+	/**
+	 * Return the tracker that times the requests written with
+	 * {@link #write(byte[])}. Replies must be reported to it as they are
+	 * decoded. */
+	public RequestTracker getRequestTracker() {
+		return mRequestTracker;
+	}
+
+	/**
+	 * Return the link counters. They are sampled by the service; listeners
+	 * are told after every sample. */
+	public LinkStats getLinkStats() {
+		return mLinkStats;
+	}
+
+	/**
+	 * Return the histogram of the time from losing the connection until
+	 * it was made again. */
+	public LatencyHistogram getReconnectGaps() {
+		return mReconnectGaps;
+	}
+
+	/**
+	 * Set the recorder that receives every chunk read from the device.
+	 * @param recorder  A started recorder, or null to stop recording
+	 */
+	public void setRecorder(FlightRecorder recorder) {
+		mRecorder = recorder;
 	}
 
 	/**
-	 * Indicate that the connection attempt failed and notify the UI Activity.
+	 * Indicate that the connection attempt failed. While reconnecting, try
+	 * again after a delay, otherwise notify the UI Activity.
+	 * @param thread  The failed thread; nothing happens if it was replaced already
 	 */
-	private void connectionFailed() {
+	private synchronized void connectionFailed(ConnectThread thread) {
+		if (thread != mConnectThread) return;
+		mConnectThread = null;
+		if (mLostAt != 0) {
+			reconnect();
+			return;
+		}
+
 		// Send a failure message back to the Activity
-		Message msg = mHandler.obtainMessage(MultiWiiMainActivity.MESSAGE_TOAST);
-		Bundle bundle = new Bundle();
-		bundle.putString(MultiWiiMainActivity.TOAST, "Unable to connect device");
-		msg.setData(bundle);
-		mHandler.sendMessage(msg);
+		toast("Unable to connect device");
 
 		// Start the service over to restart listening mode
 		MultiWiiConnectorService.this.start();
 	}
 
 	/**
-	 * Indicate that the connection was lost and notify the UI Activity.
+	 * Indicate that the connection was lost. Reconnect if the device is
+	 * known, otherwise notify the UI Activity.
+	 * @param thread  The thread that lost its connection; nothing happens if it was cancelled
 	 */
-	private void connectionLost() {
+	private synchronized void connectionLost(ConnectedThread thread) {
+		if (thread != mConnectedThread) return;
+		mConnectedThread = null;
+		if (mReconnectFactory != null) {
+			mLostAt = System.nanoTime();
+			toast("Device connection was lost, reconnecting");
+			reconnect();
+			return;
+		}
+
 		// Send a failure message back to the Activity
+		toast("Device connection was lost");
+
+		// Start the service over to restart listening mode
+		MultiWiiConnectorService.this.start();
+	}
+
+	// Start the next reconnect attempt, or give up if it takes too long
+	private void reconnect() {
+		if (System.nanoTime() - mLostAt > RECONNECT_GIVE_UP * 1000000L) {
+			mLostAt = 0;
+			toast("Unable to reconnect");
+			start();
+			return;
+		}
+		startConnect(mReconnectFactory.create(), mBackoff.next());
+	}
+
+	private void toast(String text) {
 		Message msg = mHandler.obtainMessage(MultiWiiMainActivity.MESSAGE_TOAST);
 		Bundle bundle = new Bundle();
-		bundle.putString(MultiWiiMainActivity.TOAST, "Device connection was lost");
+		bundle.putString(MultiWiiMainActivity.TOAST, text);
 		msg.setData(bundle);
 		mHandler.sendMessage(msg);
-
-		// Start the service over to restart listening mode
-		MultiWiiConnectorService.this.start();
 	}
 
 	/**
@@ -248,27 +574,32 @@ public class MultiWiiConnectorService {
 	 * (or until cancelled).
 	 */
 	private class AcceptThread extends Thread {
-		// The local server socket
-		private final BluetoothServerSocket mmServerSocket;
+		// The local server socket, opened by the thread itself
+		private volatile BluetoothServerSocket mmServerSocket;
+		private volatile boolean mmCancelled;
 		private String mSocketType;
 
 		public AcceptThread() {
-			BluetoothServerSocket tmp = null;
 			mSocketType =  "Secure";
+		}
 
-			// Create a new listening server socket
+		public void run() {
+			if (D) Log.d(TAG, "Socket Type: " + mSocketType + "BEGIN mAcceptThread" + this);
+			setName("AcceptThread" + mSocketType);
+
+			// Registering the service record takes a while, so not on the caller's thread
 			try {
-				tmp = mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE,
+				mmServerSocket = getBluetoothAdapter().listenUsingRfcommWithServiceRecord(NAME_SECURE,
 						MY_UUID_SECURE);
 			} catch (IOException e) {
 				Log.e(TAG, "Socket Type: " + mSocketType + "listen() failed", e);
+				return;
+			}
+			// Cancelled while opening
+			if (mmCancelled) {
+				cancel();
+				return;
 			}
-			mmServerSocket = tmp;
-		}
-
-		public void run() {
-			if (D) Log.d(TAG, "Socket Type: " + mSocketType + "BEGIN mAcceptThread" + this);
-			setName("AcceptThread" + mSocketType);
 
 			BluetoothSocket socket = null;
 
@@ -290,7 +621,8 @@ public class MultiWiiConnectorService {
 						case STATE_LISTEN:
 						case STATE_CONNECTING:
 							// Situation normal. Start the connected thread.
-							connected(socket, socket.getRemoteDevice(), mSocketType);
+							mReconnectFactory = BluetoothTransport.factory(socket.getRemoteDevice());
+							connected(new BluetoothTransport(socket), mSocketType);
 							break;
 						case STATE_NONE:
 						case STATE_CONNECTED:
@@ -311,8 +643,11 @@ public class MultiWiiConnectorService {
 
 		public void cancel() {
 			if (D) Log.d(TAG, "Socket Type" + mSocketType + "cancel " + this);
+			mmCancelled = true;
+			BluetoothServerSocket serverSocket = mmServerSocket;
+			if (serverSocket == null) return;
 			try {
-				mmServerSocket.close();
+				serverSocket.close();
 			} catch (IOException e) {
 				Log.e(TAG, "Socket Type" + mSocketType + "close() of server failed", e);
 			}
@@ -326,60 +661,83 @@ public class MultiWiiConnectorService {
 	 * succeeds or fails.
 	 */
 	private class ConnectThread extends Thread {
-		private final BluetoothSocket mmSocket;
-		private final BluetoothDevice mmDevice;
+		private final Transport mmTransport;
+		private final long mmDelay;
+		// Attempts after a loss do not count against the device
+		private final boolean mmReconnect;
 		private String mSocketType;
 
-		public ConnectThread(BluetoothDevice device) {
-			mmDevice = device;
-			BluetoothSocket tmp = null;
-			mSocketType =  "Secure";
-
-			Method m;
-			try {
-				m = device.getClass().getMethod("createRfcommSocket", new Class[] {int.class});
-				tmp = (BluetoothSocket) m.invoke(device, 1);
-			} catch (Exception e) {
-				Log.e(TAG,e.getMessage());
-			}
-			mmSocket = tmp;
+		public ConnectThread(Transport transport, long delay) {
+			mmTransport = transport;
+			mmDelay = delay;
+			mmReconnect = mLostAt != 0;
+			mSocketType = transport instanceof BluetoothTransport ? "Secure" : "Transport";
 		}
 
 		public void run() {
 			Log.i(TAG, "BEGIN mConnectThread SocketType:" + mSocketType);
 			setName("ConnectThread" + mSocketType);
 
+			if (mmDelay > 0) {
+				try {
+					Thread.sleep(mmDelay);
+				} catch (InterruptedException e) {
+					// Cancelled
+					return;
+				}
+			}
+
 			// Always cancel discovery because it will slow down a connection
-			mAdapter.cancelDiscovery();
+			BluetoothAdapter adapter = getBluetoothAdapter();
+			if (adapter != null) adapter.cancelDiscovery();
 
-			// Make a connection to the BluetoothSocket
+			// Make a connection to the Transport
 			try {
 				// This is a blocking call and will only return on a
 				// successful connection or an exception
-				mmSocket.connect();
+				mmTransport.connect();
 			} catch (IOException e) {
 				// Close the socket
 				try {
-					mmSocket.close();
+					mmTransport.close();
 				} catch (IOException e2) {
 					Log.e(TAG, "unable to close() " + mSocketType +" socket during connection failure", e2);
 				}
-				connectionFailed();
+				if (!mmReconnect && !isInterrupted()) remember(false);
+				connectionFailed(this);
 				return;
 			}
+			remember(true);
 
-			// Reset the ConnectThread because we're done
 			synchronized (MultiWiiConnectorService.this) {
+				// A cancelled attempt may still have succeeded
+				if (mConnectThread != this) {
+					try {
+						mmTransport.close();
+					} catch (IOException e) {
+						Log.e(TAG, "close() of cancelled " + mSocketType + " socket failed", e);
+					}
+					return;
+				}
+				// Reset the ConnectThread because we're done
 				mConnectThread = null;
+
+				// Start the connected thread
+				connected(mmTransport, mSocketType);
 			}
+		}
 
-			// Start the connected thread
-			connected(mmSocket, mmDevice, mSocketType);
+		// Update the known devices, outside the lock since it writes to storage
+		private void remember(boolean connected) {
+			if (!(mmTransport instanceof BluetoothTransport)) return;
+			BluetoothDevice device = ((BluetoothTransport) mmTransport).getDevice();
+			mKnownDevices.onConnect(device.getAddress(), device.getName(), connected);
 		}
 
 		public void cancel() {
+			interrupt();
 			try {
-				mmSocket.close();
+				mmTransport.close();
 			} catch (IOException e) {
 				Log.e(TAG, "close() of connect " + mSocketType + " socket failed", e);
 			}
@@ -388,23 +746,27 @@ public class MultiWiiConnectorService {
 
 	/**
 	 * This thread runs during a connection with a remote device.
-	 * It handles all incoming and outgoing transmissions.
+	 * It handles all incoming transmissions and queues outgoing ones for
+	 * the SharedWriter.
 	 */
-	private class ConnectedThread extends Thread {
-		private final BluetoothSocket mmSocket;
+	private class ConnectedThread extends Thread implements SharedWriter.Link {
+		private final Transport mmTransport;
 		private final InputStream mmInStream;
 		private final OutputStream mmOutStream;
+		private final WriteQueue mmQueue = new WriteQueue(WRITE_QUEUE_CAPACITY, WRITE_BATCH_SIZE);
+		private final SharedWriter mmWriter;
 
-		public ConnectedThread(BluetoothSocket socket, String socketType) {
+		public ConnectedThread(Transport transport, String socketType, SharedWriter writer) {
 			Log.d(TAG, "create ConnectedThread: " + socketType);
-			mmSocket = socket;
+			mmTransport = transport;
+			mmWriter = writer;
 			InputStream tmpIn = null;
 			OutputStream tmpOut = null;
 
-			// Get the BluetoothSocket input and output streams
+			// Get the Transport input and output streams
 			try {
-				tmpIn = socket.getInputStream();
-				tmpOut = socket.getOutputStream();
+				tmpIn = transport.getInputStream();
+				tmpOut = transport.getOutputStream();
 			} catch (IOException e) {
 				Log.e(TAG, "temp sockets not created", e);
 			}
@@ -415,44 +777,122 @@ public class MultiWiiConnectorService {
 
 		public void run() {
 			Log.i(TAG, "BEGIN mConnectedThread");
-			byte[] buffer = new byte[1024];
+			byte[] buffer = new byte[READ_BUFFER_SIZE];
 			int bytes;
 
+			mmWriter.add(this);
+
 			// Keep listening to the InputStream while connected
 			while (true) {
 				try {
 					// Read from the InputStream
 					bytes = mmInStream.read(buffer);
-					// Send the obtained bytes to the UI Activity
-					mHandler.obtainMessage(MultiWiiMainActivity.MESSAGE_READ, bytes, -1, buffer.clone()).sendToTarget();
 				} catch (IOException e) {
 					Log.e(TAG, "disconnected", e);
-					connectionLost();
+					connectionLost(this);
+					break;
+				}
+				if (bytes > 0) {
+					mLinkStats.add(LinkStats.BYTES_IN, bytes);
+					FlightRecorder recorder = mRecorder;
+					if (recorder != null) recorder.record(buffer, 0, bytes);
+					// Decode right here, only the result goes to the UI
+					mTelemetry.onData(buffer, 0, bytes, SystemClock.uptimeMillis());
+				} else if (bytes < 0) {
+					// End of stream, e.g. a TCP peer that went away
+					connectionLost(this);
 					break;
 				}
 			}
+			// Also covers a cancel() that came before the link was added
+			mmWriter.remove(this);
 		}
 
 		/**
-		 * Write to the connected OutStream.
+		 * Queue bytes for the SharedWriter.
 		 * @param buffer  The bytes to write
+		 * @param coalesce  true to merge with a queued copy of the same array
 		 */
-		public void write(byte[] buffer) {
-			try {
-				mmOutStream.write(buffer);
-				// Share the sent message back to the UI Activity
-				mHandler.obtainMessage(MultiWiiMainActivity.MESSAGE_WRITE, -1, -1, buffer).sendToTarget();
-			} catch (IOException e) {
-				Log.e(TAG, "Exception during write", e);
+		public void write(byte[] buffer, boolean coalesce) {
+			if (!mmQueue.offer(buffer, coalesce)) {
+				if (D) Log.d(TAG, "write queue full, dropped " + buffer.length + " bytes");
 			}
 		}
 
 		public void cancel() {
+			mmWriter.remove(this);
 			try {
-				mmSocket.close();
+				mmTransport.close();
 			} catch (IOException e) {
 				Log.e(TAG, "close() of connect socket failed", e);
 			}
 		}
+
+		public WriteQueue getWriteQueue() {
+			return mmQueue;
+		}
+
+		public OutputStream getOutputStream() {
+			return mmOutStream;
+		}
+
+		public void onWritten(int messages, int bytes, long start, long end) {
+			mWriteStall.record(end - start);
+			mLinkStats.add(LinkStats.BYTES_OUT, bytes);
+		}
+
+		public void onWriteFailed(IOException e) {
+			// The reading side notices the lost connection
+			Log.e(TAG, "Exception during write", e);
+		}
+
+		public void onTick(long now) {
+			mTelemetry.onTick(now);
+		}
+	}
+
+	/**
+	 * This thread plays a recorded session back through the same path as
+	 * the data read by the ConnectedThread.
+	 */
+	private class ReplayThread extends Thread implements ReplaySource.Sink {
+		private final ReplaySource mmSource;
+		private final float mmSpeed;
+
+		public ReplayThread(ReplaySource source, float speed) {
+			mmSource = source;
+			mmSpeed = speed;
+		}
+
+		public void run() {
+			Log.i(TAG, "BEGIN mReplayThread");
+			setName("ReplayThread");
+			String result;
+			try {
+				mmSource.play(this, mmSpeed);
+				result = "Replay finished";
+			} catch (IOException e) {
+				Log.e(TAG, "replay failed", e);
+				result = "Replay failed";
+			}
+			if (D) Log.d(TAG, "replayed " + mmSource.getRecordCount() + " chunks in "
+					+ mmSource.getElapsedNanos() / 1000000 + " ms");
+
+			Message msg = mHandler.obtainMessage(MultiWiiMainActivity.MESSAGE_TOAST);
+			Bundle bundle = new Bundle();
+			bundle.putString(MultiWiiMainActivity.TOAST, result);
+			msg.setData(bundle);
+			mHandler.sendMessage(msg);
+		}
+
+		public void onChunk(byte[] data, int offset, int length) {
+			mTelemetry.onData(data, offset, length, SystemClock.uptimeMillis());
+			// Nothing is polled, but the link statistics go on
+			mTelemetry.onTick(System.nanoTime());
+		}
+
+		public void cancel() {
+			mmSource.stop();
+		}
 	}
 }
@@ -16,28 +16,33 @@
 
 package de.rettig.multiwii;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.Intent;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Matrix;
+import android.graphics.Color;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Environment;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.view.Window;
 import android.widget.Button;
-import android.widget.ImageView;
-import android.widget.ImageView.ScaleType;
 import android.widget.ProgressBar;
 import android.widget.SeekBar;
 import android.widget.SeekBar.OnSeekBarChangeListener;
@@ -50,18 +55,22 @@ import android.widget.Toast;
  */
 public class MultiWiiMainActivity extends Activity {
 
-	Timer timer = new Timer();
+	// Where to reach a SimulatedMultiWii; the emulator sees the host's loopback here
+	private static final String SIMULATOR_HOST = "10.0.2.2";
 
-	final int dataLength = 154;
-	byte[] buffer = new byte[dataLength];
-	int dataIndex = 0;
-	Bitmap picWiiFront;
-	Bitmap picWiiSide;
-	Bitmap picWiiUp;
+	// Flight recordings, at most 128 segments of 4 MB
+	private static final String RECORDING_DIR = "MultiWii/recordings";
+	private static final int RECORDING_SEGMENT_SIZE = 4 * 1024 * 1024;
+	private static final int RECORDING_MAX_SEGMENTS = 128;
+
+	// Pictures of the copter from the front and the side, decoded in the
+	// background; rotating keeps the activity, see the manifest
+	private Bitmap[] pictures;
+	private LoadPicturesTask picturesTask;
 	
-	ImageView imageViewRoll;
-	ImageView imageViewPitch;
-	ImageView imageViewMag;
+	AttitudeView imageViewRoll;
+	AttitudeView imageViewPitch;
+	AttitudeView imageViewMag;
 	
 
 	// Debugging
@@ -69,9 +78,6 @@ public class MultiWiiMainActivity extends Activity {
 	private static final boolean D = true;
 
 	// Message types sent from the BluetoothChatService Handler
-	public static final int MESSAGE_STATE_CHANGE = 1;
-	public static final int MESSAGE_READ = 2;
-	public static final int MESSAGE_WRITE = 3;
 	public static final int MESSAGE_DEVICE_NAME = 4;
 	public static final int MESSAGE_TOAST = 5;
 
@@ -82,9 +88,14 @@ public class MultiWiiMainActivity extends Activity {
 	// Intent request codes
 	private static final int REQUEST_CONNECT_DEVICE_SECURE = 1;
 	private static final int REQUEST_ENABLE_BT = 3;
+	private static final int REQUEST_ADD_DEVICE = 4;
 
 	// Layout Views
 	private TextView mTitle;
+	private TextView mLinkStats;
+	private View mGauges;
+	private StripChartView mChart;
+	private TextView mSessionList;
 
 	// Name of the connected device
 	private String mConnectedDeviceName = null;
@@ -97,11 +108,39 @@ public class MultiWiiMainActivity extends Activity {
 	private ProgressBar pAy;
 	private ProgressBar pAx;
 	private SeekBar seekBarAngle;
-	private Copter copter = new Copter();
+	// Show the phone's attitude estimate instead of the flight
+	// controller's own angles
+	private boolean useFusion = false;
+	private FlightRecorder recorder;
+	// Copy of the decoded state currently on screen
+	private final Copter shownCopter = new Copter();
+	private long shownVersion = -1;
+	// Time between two display refreshes in ms
+	private long frameInterval = 16;
+	private final StringBuilder statsText = new StringBuilder();
+	// Further copters are refreshed every SESSIONS_INTERVAL ms
+	private static final long SESSIONS_INTERVAL = 500;
+	// Reused to read the state of the further copters
+	private final Copter sessionCopter = new Copter();
+	private final StringBuilder sessionText = new StringBuilder();
+	private long nextSessionsUpdate;
+	// Runs the telemetry listener on the UI thread
+	private final Executor uiExecutor = new Executor() {
+		public void execute(Runnable command) {
+			mHandler.post(command);
+		}
+	};
+	// Startup milestones in SystemClock.uptimeMillis(), 0 until reached
+	private long createTime;
+	private long firstDrawTime;
+	private long firstTelemetryTime;
+	// Device list to show once Bluetooth was turned on
+	private int pendingDeviceRequest;
 
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
+		createTime = SystemClock.uptimeMillis();
 		if(D) Log.e(TAG, "+++ ON CREATE +++");
 
 		// Set up the window layout
@@ -109,9 +148,9 @@ public class MultiWiiMainActivity extends Activity {
 		setContentView(R.layout.main);
 		getWindow().setFeatureInt(Window.FEATURE_CUSTOM_TITLE, R.layout.custom_title);
 
-		imageViewRoll = (ImageView) findViewById(R.id.imageViewRoll);
-		imageViewPitch = (ImageView) findViewById(R.id.imageViewPitch);
-		imageViewMag = (ImageView) findViewById(R.id.imageView1);
+		imageViewRoll = (AttitudeView) findViewById(R.id.imageViewRoll);
+		imageViewPitch = (AttitudeView) findViewById(R.id.imageViewPitch);
+		imageViewMag = (AttitudeView) findViewById(R.id.imageView1);
 		
 		pAx = (ProgressBar) findViewById(R.id.progressBar1);
 		pAy = (ProgressBar) findViewById(R.id.progressBar2);
@@ -138,43 +177,90 @@ public class MultiWiiMainActivity extends Activity {
 			
 			@Override
 			public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
-				copter.angleX = progress;
+				shownCopter.angleX = progress;
 				updateUI();
 			}
 		});
-		picWiiFront = BitmapFactory.decodeResource(getResources(), R.drawable.wiifront);
-		picWiiSide = BitmapFactory.decodeResource(getResources(), R.drawable.wiiside);
-		picWiiUp = BitmapFactory.decodeResource(getResources(), R.drawable.wiiup);
+		// The views draw nothing until the pictures are there
+		picturesTask = new LoadPicturesTask(this);
+		picturesTask.execute();
+		final View content = findViewById(android.R.id.content);
+		content.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+			public boolean onPreDraw() {
+				content.getViewTreeObserver().removeOnPreDrawListener(this);
+				firstDrawTime = SystemClock.uptimeMillis();
+				if(D) Log.i(TAG, "first frame after " + (firstDrawTime - createTime) + " ms");
+				return true;
+			}
+		});
 
 		mTitle = (TextView) findViewById(R.id.title_left_text);
 		mTitle.setText(R.string.app_name);
 		mTitle = (TextView) findViewById(R.id.title_right_text);
 		mButtonSend = (Button) findViewById(R.id.button_send);
+		mLinkStats = (TextView) findViewById(R.id.link_stats);
+		mGauges = findViewById(R.id.linearLayout1);
+		mChart = (StripChartView) findViewById(R.id.strip_chart);
+		mSessionList = (TextView) findViewById(R.id.sessions);
+		setupChart();
+
+		float refreshRate = getWindowManager().getDefaultDisplay().getRefreshRate();
+		if (refreshRate > 0) frameInterval = (long) (1000 / refreshRate);
+	}
+
+	// Decodes the pictures off the UI thread and hands them to the activity
+	// unless it was destroyed meanwhile. The pictures are tiny, so they are
+	// decoded as usual, scaled to the density of the display.
+	private static class LoadPicturesTask extends AsyncTask<Void, Void, Bitmap[]> {
+		private final Resources mResources;
+		// Only touched on the UI thread, null once the activity is destroyed
+		private MultiWiiMainActivity mActivity;
+
+		LoadPicturesTask(MultiWiiMainActivity activity) {
+			mResources = activity.getApplicationContext().getResources();
+			mActivity = activity;
+		}
 
-		// Get local Bluetooth adapter
-		mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+		// Drop the activity and the result
+		void detach() {
+			mActivity = null;
+			cancel(false);
+		}
 
-		// If the adapter is null, then Bluetooth is not supported
-		if (mBluetoothAdapter == null) {
-			Toast.makeText(this, "Bluetooth is not available", Toast.LENGTH_LONG).show();
-			finish();
-			return;
+		@Override
+		protected Bitmap[] doInBackground(Void... params) {
+			return new Bitmap[] {
+					BitmapFactory.decodeResource(mResources, R.drawable.wiifront),
+					BitmapFactory.decodeResource(mResources, R.drawable.wiiside)
+			};
+		}
+
+		@Override
+		protected void onPostExecute(Bitmap[] result) {
+			if (mActivity != null) mActivity.onPicturesLoaded(result);
 		}
 	}
 
+	private void onPicturesLoaded(Bitmap[] result) {
+		pictures = result;
+		picturesTask = null;
+		showPictures();
+	}
+
+	private void showPictures() {
+		imageViewRoll.setBitmap(pictures[0]);
+		imageViewPitch.setBitmap(pictures[1]);
+		imageViewMag.setBitmap(pictures[1]);
+	}
+
 	@Override
 	public void onStart() {
 		super.onStart();
 		if(D) Log.e(TAG, "++ ON START ++");
 
-		// If BT is not on, request that it be enabled.
-		if (!mBluetoothAdapter.isEnabled()) {
-			Intent enableIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
-			startActivityForResult(enableIntent, REQUEST_ENABLE_BT);
-			// Otherwise, setup the chat session
-		} else {
-			if (mMultiWiiConnectorService == null) setupCommunication();
-		}
+		// Bluetooth is only asked for when a device is picked, the simulator
+		// and replays work without it
+		if (mMultiWiiConnectorService == null) setupCommunication();
 	}
 
 	@Override
@@ -192,6 +278,10 @@ public class MultiWiiMainActivity extends Activity {
 				mMultiWiiConnectorService.start();
 			}
 		}
+
+		// Start rendering once per display frame
+		mHandler.removeCallbacks(renderTask);
+		mHandler.post(renderTask);
 	}
 
 	private void setupCommunication() {
@@ -201,12 +291,26 @@ public class MultiWiiMainActivity extends Activity {
 			}
 		});
 		mMultiWiiConnectorService = new MultiWiiConnectorService(this, mHandler);
+		mMultiWiiConnectorService.addTelemetryListener(telemetryListener, uiExecutor);
+		mMultiWiiConnectorService.addTelemetryListener(firstFrameListener, uiExecutor);
+		TelemetryPipeline telemetry = mMultiWiiConnectorService.getTelemetry();
+		mChart.setHistory(telemetry.getHistory());
+
+		// Attitude drives the display, the rest changes slowly
+		MspScheduler msp = telemetry.getMspScheduler();
+		msp.setRate(Msp.MSP_ATTITUDE, 50, 3);
+		msp.setRate(Msp.MSP_RAW_IMU, 20, 2);
+		msp.setRate(Msp.MSP_ALTITUDE, 5, 1);
+		msp.setRate(Msp.MSP_RC, 5, 1);
+		msp.setRate(Msp.MSP_MOTOR, 5, 1);
+		msp.setRate(Msp.MSP_STATUS, 2, 0);
 	}
 
 	@Override
 	public synchronized void onPause() {
 		super.onPause();
 		if(D) Log.e(TAG, "- ON PAUSE -");
+		mHandler.removeCallbacks(renderTask);
 	}
 
 	@Override
@@ -219,12 +323,51 @@ public class MultiWiiMainActivity extends Activity {
 	public void onDestroy() {
 		super.onDestroy();
 		// Stop the Bluetooth chat services
-		if (mMultiWiiConnectorService != null) mMultiWiiConnectorService.stop();
+		setRecording(false);
+		if (picturesTask != null) picturesTask.detach();
+		if (mMultiWiiConnectorService != null) {
+			mMultiWiiConnectorService.removeTelemetryListener(telemetryListener);
+			mMultiWiiConnectorService.stop();
+		}
 		if(D) Log.e(TAG, "--- ON DESTROY ---");
 	}
 
+	/**
+	 * Return the Bluetooth adapter, looked up on first use.
+	 * @return The adapter, or null after telling the user there is none
+	 */
+	private BluetoothAdapter getBluetoothAdapter() {
+		if (mBluetoothAdapter == null) {
+			mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+			// Bluetooth is not supported, only the simulator works
+			if (mBluetoothAdapter == null) {
+				Toast.makeText(this, "Bluetooth is not available", Toast.LENGTH_LONG).show();
+			}
+		}
+		return mBluetoothAdapter;
+	}
+
+	/**
+	 * Launch the DeviceListActivity, after asking to turn Bluetooth on if
+	 * it is off.
+	 * @param requestCode  REQUEST_CONNECT_DEVICE_SECURE or REQUEST_ADD_DEVICE
+	 */
+	private void pickDevice(int requestCode) {
+		BluetoothAdapter adapter = getBluetoothAdapter();
+		if (adapter == null) return;
+		if (!adapter.isEnabled()) {
+			pendingDeviceRequest = requestCode;
+			Intent enableIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
+			startActivityForResult(enableIntent, REQUEST_ENABLE_BT);
+			return;
+		}
+		Intent serverIntent = new Intent(this, DeviceListActivity.class);
+		startActivityForResult(serverIntent, requestCode);
+	}
+
 	private void ensureDiscoverable() {
 		if(D) Log.d(TAG, "ensure discoverable");
+		if (getBluetoothAdapter() == null) return;
 		if (mBluetoothAdapter.getScanMode() != BluetoothAdapter.SCAN_MODE_CONNECTABLE_DISCOVERABLE) {
 			Intent discoverableIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_DISCOVERABLE);
 			discoverableIntent.putExtra(BluetoothAdapter.EXTRA_DISCOVERABLE_DURATION, 300);
@@ -237,23 +380,6 @@ public class MultiWiiMainActivity extends Activity {
 		@Override
 		public void handleMessage(Message msg) {
 			switch (msg.what) {
-			case MESSAGE_STATE_CHANGE:
-				if(D) Log.i(TAG, "MESSAGE_STATE_CHANGE: " + msg.arg1);
-				switch (msg.arg1) {
-				case MultiWiiConnectorService.STATE_CONNECTED:
-					mTitle.setText(R.string.title_connected_to);
-					mTitle.append(mConnectedDeviceName);
-					timer.schedule(pollTask, 1000,100);
-					break;
-				case MultiWiiConnectorService.STATE_CONNECTING:
-					mTitle.setText(R.string.title_connecting);
-					break;
-				case MultiWiiConnectorService.STATE_LISTEN:
-				case MultiWiiConnectorService.STATE_NONE:
-					mTitle.setText(R.string.title_not_connected);
-					break;
-				}
-				break;
 			case MESSAGE_DEVICE_NAME:
 				// save the connected device's name
 				mConnectedDeviceName = msg.getData().getString(DEVICE_NAME);
@@ -262,11 +388,44 @@ public class MultiWiiMainActivity extends Activity {
 			case MESSAGE_TOAST:
 				Toast.makeText(getApplicationContext(), msg.getData().getString(TOAST),	Toast.LENGTH_SHORT).show();
 				break;
-			case MESSAGE_READ:
-				receiveData((byte[])msg.obj,msg.arg1);
+			}
+		}
+	};
+
+	// Events of the main connection, called on the UI thread
+	private final TelemetryListener telemetryListener = new TelemetryListener.Adapter() {
+		@Override
+		public void onStateChanged(int state, boolean reconnected) {
+			if(D) Log.i(TAG, "state change: " + state);
+			switch (state) {
+			case MultiWiiConnectorService.STATE_CONNECTED:
+				mTitle.setText(R.string.title_connected_to);
+				mTitle.append(mConnectedDeviceName);
+				break;
+			case MultiWiiConnectorService.STATE_CONNECTING:
+				mTitle.setText(R.string.title_connecting);
+				break;
+			case MultiWiiConnectorService.STATE_LISTEN:
+			case MultiWiiConnectorService.STATE_NONE:
+				mTitle.setText(R.string.title_not_connected);
 				break;
 			}
 		}
+
+		@Override
+		public void onLinkStats(LinkStats stats) {
+			if (mLinkStats.getVisibility() == View.VISIBLE) updateLinkStats();
+		}
+	};
+
+	// Frames are drawn by the renderTask, this only marks the first one
+	private final TelemetryListener firstFrameListener = new TelemetryListener.Adapter() {
+		@Override
+		public void onFrame(CopterSnapshot snapshot) {
+			mMultiWiiConnectorService.removeTelemetryListener(this);
+			firstTelemetryTime = SystemClock.uptimeMillis();
+			if(D) Log.i(TAG, "first telemetry after " + (firstTelemetryTime - createTime) + " ms");
+		}
 	};
 
 	public void onActivityResult(int requestCode, int resultCode, Intent data) {
@@ -279,55 +438,129 @@ public class MultiWiiMainActivity extends Activity {
 			}
 			break;
 
+		case REQUEST_ADD_DEVICE:
+			if (resultCode == Activity.RESULT_OK) {
+				String address = data.getExtras().getString(DeviceListActivity.EXTRA_DEVICE_ADDRESS);
+				BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
+				mMultiWiiConnectorService.addSession(new BluetoothTransport(device));
+			}
+			break;
 		case REQUEST_ENABLE_BT:
 			// When the request to enable Bluetooth returns
 			if (resultCode == Activity.RESULT_OK) {
-				setupCommunication();
+				if (mMultiWiiConnectorService != null) mMultiWiiConnectorService.listen();
+				pickDevice(pendingDeviceRequest);
 			} else {
 				// User did not enable Bluetooth or an error occured
 				Log.d(TAG, "BT not enabled");
-				Toast.makeText(this, R.string.bt_not_enabled_leaving, Toast.LENGTH_SHORT).show();
-				finish();
+				Toast.makeText(this, R.string.bt_not_enabled, Toast.LENGTH_SHORT).show();
 			}
 		}
 	}
 
-	protected void receiveData(byte[] data, int length) {
-		for (int i=0;i<length;i++){
-			if (data[i]=='M' & dataIndex == dataLength){
-				processData();
-				dataIndex = 0;
-			} else if (dataIndex < dataLength){
-				//Log.d(TAG,"data at "+dataIndex+" :"+data[i]);
-				buffer[dataIndex++] = data[i];
+	// Shows the newest state once per display frame, however many frames arrived
+	private final Runnable renderTask = new Runnable() {
+		public void run() {
+			if (mMultiWiiConnectorService != null) {
+				CopterSnapshot snapshot = mMultiWiiConnectorService.getTelemetry().getSnapshot();
+				if (snapshot.getVersion() != shownVersion) {
+					shownVersion = snapshot.read(shownCopter);
+					updateUI();
+					mMultiWiiConnectorService.getRequestTracker().onRender(shownCopter.requestTime, System.nanoTime());
+				}
+				long now = SystemClock.uptimeMillis();
+				if (now >= nextSessionsUpdate) {
+					nextSessionsUpdate = now + SESSIONS_INTERVAL;
+					updateSessions(now);
+				}
 			}
+			// The chart scrolls even when no new data arrived
+			if (mChart.getVisibility() == View.VISIBLE) mChart.invalidate();
+			mHandler.postDelayed(this, frameInterval);
+		}
+	};
+
+	// One line per further copter: attitude, frame rate and round trip
+	private void updateSessions(long now) {
+		List<CopterSession> sessions = mMultiWiiConnectorService.getSessions();
+		if (sessions.isEmpty()) {
+			mSessionList.setVisibility(View.GONE);
+			return;
 		}
+		StringBuilder sb = sessionText;
+		sb.setLength(0);
+		for (CopterSession session : sessions) {
+			session.getSnapshot().read(sessionCopter);
+			LinkStats stats = session.getLinkStats();
+			stats.sample(now);
+			if (sb.length() > 0) sb.append('\n');
+			sb.append(session.getName());
+			sb.append(" roll ").append(sessionCopter.angleX);
+			sb.append(" pitch ").append(sessionCopter.angleY);
+			sb.append(" head ").append(sessionCopter.head);
+			sb.append(' ').append(Math.round(stats.getRate(LinkStats.FRAMES))).append("/s ");
+			LatencyHistogram roundTrip = session.getRequestTracker().getRoundTrip();
+			sb.append(roundTrip.getPercentile(50) / 1000000).append(" ms");
+		}
+		mSessionList.setText(sb);
+		mSessionList.setVisibility(View.VISIBLE);
 	}
 
-	private int bytesToInt(byte b1, byte b2){
-		return  (b1 & 0xFF) + (b2 << 8); 
+	private void setupChart() {
+		int lane = mChart.addLane("gyro");
+		mChart.addChannel(TelemetryHistory.GX, lane, Color.RED);
+		mChart.addChannel(TelemetryHistory.GY, lane, Color.GREEN);
+		mChart.addChannel(TelemetryHistory.GZ, lane, Color.CYAN);
+		lane = mChart.addLane("acc");
+		mChart.addChannel(TelemetryHistory.AX, lane, Color.RED);
+		mChart.addChannel(TelemetryHistory.AY, lane, Color.GREEN);
+		mChart.addChannel(TelemetryHistory.AZ, lane, Color.CYAN);
+		lane = mChart.addLane("mag");
+		mChart.addChannel(TelemetryHistory.MAG_X, lane, Color.RED);
+		mChart.addChannel(TelemetryHistory.MAG_Y, lane, Color.GREEN);
+		mChart.addChannel(TelemetryHistory.MAG_Z, lane, Color.CYAN);
+		lane = mChart.addLane("baro");
+		mChart.addChannel(TelemetryHistory.BARO, lane, Color.YELLOW);
+		lane = mChart.addLane("attitude");
+		mChart.addChannel(TelemetryHistory.FUSED_ROLL, lane, Color.RED);
+		mChart.addChannel(TelemetryHistory.FUSED_PITCH, lane, Color.GREEN);
+	}
+
+	private void updateLinkStats() {
+		if (mMultiWiiConnectorService == null) return;
+		RequestTracker tracker = mMultiWiiConnectorService.getRequestTracker();
+		StringBuilder sb = statsText;
+		sb.setLength(0);
+		sb.append("round trip ");
+		tracker.getRoundTrip().appendSummary(sb);
+		sb.append("\nto screen  ");
+		tracker.getRequestToRender().appendSummary(sb);
+		sb.append("\nunanswered ").append(tracker.getUnansweredCount()).append('\n');
+		// How far the phone's estimate is from the flight controller's
+		sb.append("fused - fc roll ").append(Math.round(shownCopter.fusedRoll - shownCopter.angleX));
+		sb.append(" pitch ").append(Math.round(shownCopter.fusedPitch - shownCopter.angleY));
+		sb.append(" head ").append(Math.round(shownCopter.fusedHeading - shownCopter.head)).append('\n');
+		mMultiWiiConnectorService.getLinkStats().appendSummary(sb);
+		WriteQueue queue = mMultiWiiConnectorService.getWriteQueue();
+		if (queue != null) {
+			sb.append("\nwrite queue ").append(queue.getDepth()).append(" max ").append(queue.getMaxDepth());
+			sb.append(" coalesced ").append(queue.getCoalescedCount());
+			sb.append(" dropped ").append(queue.getRejectedCount());
+		}
+		sb.append("\nwrite stall ");
+		mMultiWiiConnectorService.getWriteStall().appendSummary(sb);
+		sb.append("\nreconnect gap ");
+		mMultiWiiConnectorService.getReconnectGaps().appendSummary(sb);
+		sb.append("\nstartup first frame ");
+		appendMilestone(sb, firstDrawTime);
+		sb.append(" first telemetry ");
+		appendMilestone(sb, firstTelemetryTime);
+		mLinkStats.setText(sb);
 	}
-	
-	private void processData() {
-		copter.ax = bytesToInt(buffer[2], buffer[3]); 
-		copter.ay = bytesToInt(buffer[4], buffer[5]); 
-		copter.az = bytesToInt(buffer[6], buffer[7]); 
-	
-		copter.gx = bytesToInt(buffer[8], buffer[9]); 
-		copter.gy = bytesToInt(buffer[10], buffer[11]); 
-		copter.gz = bytesToInt(buffer[12], buffer[13]); 
-	
-		copter.magX = bytesToInt(buffer[14], buffer[15])/3; 
-		copter.magY = bytesToInt(buffer[16], buffer[17])/3; 
-		copter.magZ = bytesToInt(buffer[18], buffer[19])/3; 
-				
-		copter.baro = bytesToInt(buffer[20], buffer[21]); 
-		copter.head = bytesToInt(buffer[22], buffer[23]); 
-		
-		copter.angleX = bytesToInt(buffer[78], buffer[79]) /10;
-		copter.angleY = bytesToInt(buffer[80], buffer[81]) /10; 
 
-		updateUI();
+	private void appendMilestone(StringBuilder sb, long time) {
+		if (time == 0) sb.append('-');
+		else sb.append(time - createTime).append("ms");
 	}
 
 	private void connectDevice(Intent data, boolean secure) {
@@ -347,51 +580,134 @@ public class MultiWiiMainActivity extends Activity {
 	}
 
 	protected void updateUI(){
-		
-		Matrix matrix = new Matrix();
-		matrix.setRotate(copter.angleX);
-		Bitmap bmp = Bitmap.createBitmap(picWiiFront, 0, 0, picWiiFront.getWidth(), picWiiFront.getHeight(), matrix, true);
-		imageViewRoll.setImageBitmap(bmp);
-		
-		matrix = new Matrix();
-		matrix.setRotate(copter.angleY);
-		bmp = Bitmap.createBitmap(picWiiSide, 0, 0, picWiiSide.getWidth(), picWiiSide.getHeight(), matrix, true);
-		imageViewPitch.setImageBitmap(bmp);
-
-		matrix = new Matrix();
-		matrix.setRotate(copter.head);
-		bmp = Bitmap.createBitmap(picWiiSide, 0, 0, picWiiSide.getWidth(), picWiiSide.getHeight(), matrix, true);
-		imageViewMag.setImageBitmap(bmp);
-
-		pAx.setProgress(copter.ax+256);
-		pAy.setProgress(copter.ay+256);
-		pAz.setProgress(copter.az+256);
+		if (useFusion) {
+			imageViewRoll.setAngle(shownCopter.fusedRoll);
+			imageViewPitch.setAngle(shownCopter.fusedPitch);
+			imageViewMag.setAngle(shownCopter.fusedHeading);
+		} else {
+			imageViewRoll.setAngle(shownCopter.angleX);
+			imageViewPitch.setAngle(shownCopter.angleY);
+			imageViewMag.setAngle(shownCopter.head);
+		}
 
+		pAx.setProgress(shownCopter.ax+256);
+		pAy.setProgress(shownCopter.ay+256);
+		pAz.setProgress(shownCopter.az+256);
 	}
 
 	@Override
 	public boolean onOptionsItemSelected(MenuItem item) {
-		Intent serverIntent = null;
 		switch (item.getItemId()) {
 		case R.id.secure_connect_scan:
 			// Launch the DeviceListActivity to see devices and do scan
-			serverIntent = new Intent(this, DeviceListActivity.class);
-			startActivityForResult(serverIntent, REQUEST_CONNECT_DEVICE_SECURE);
+			pickDevice(REQUEST_CONNECT_DEVICE_SECURE);
 			return true;
 
 		case R.id.discoverable:
 			// Ensure this device is discoverable by others
 			ensureDiscoverable();
 			return true;
+
+		case R.id.use_msp:
+			if (mMultiWiiConnectorService != null) {
+				TelemetryPipeline telemetry = mMultiWiiConnectorService.getTelemetry();
+				telemetry.setProtocol(!telemetry.isMsp());
+				item.setChecked(telemetry.isMsp());
+			}
+			return true;
+
+		case R.id.fusion:
+			useFusion = !useFusion;
+			item.setChecked(useFusion);
+			return true;
+
+		case R.id.record:
+			setRecording(recorder == null);
+			item.setChecked(recorder != null);
+			return true;
+
+		case R.id.replay:
+			replayLatest();
+			return true;
+
+		case R.id.charts:
+			boolean charts = mChart.getVisibility() != View.VISIBLE;
+			mChart.setVisibility(charts ? View.VISIBLE : View.GONE);
+			mGauges.setVisibility(charts ? View.GONE : View.VISIBLE);
+			item.setChecked(charts);
+			return true;
+
+		case R.id.link_stats_toggle:
+			mLinkStats.setVisibility(mLinkStats.getVisibility() == View.VISIBLE ? View.GONE : View.VISIBLE);
+			item.setChecked(mLinkStats.getVisibility() == View.VISIBLE);
+			// Refreshed with every sample from then on
+			if (mLinkStats.getVisibility() == View.VISIBLE) updateLinkStats();
+			return true;
+
+		case R.id.connect_simulator:
+			if (mMultiWiiConnectorService != null) {
+				mMultiWiiConnectorService.connect(TcpTransport.factory(SIMULATOR_HOST, SimulatedMultiWii.DEFAULT_PORT));
+			}
+			return true;
+
+		case R.id.add_copter:
+			if (mMultiWiiConnectorService != null) pickDevice(REQUEST_ADD_DEVICE);
+			return true;
+
+		case R.id.add_simulator:
+			if (mMultiWiiConnectorService != null) {
+				mMultiWiiConnectorService.addSession(new TcpTransport(SIMULATOR_HOST, SimulatedMultiWii.DEFAULT_PORT));
+			}
+			return true;
 		}
 		return false;
 	}
 
-	
-	TimerTask pollTask = new TimerTask() {
-		@Override
-		public void run() {
-			mMultiWiiConnectorService.write("M".getBytes());			
+	private final FlightRecorder.Listener mRecorderStopped = new FlightRecorder.Listener() {
+		public void onStopped(FlightRecorder r) {
+			if(D) Log.d(TAG, "recorded " + r.getRecordCount() + " chunks, dropped " + r.getDroppedCount());
 		}
 	};
+
+	/**
+	 * Start or stop recording the received data to external storage.
+	 * @param on  true to start a new recording
+	 */
+	private void setRecording(boolean on) {
+		if (on && recorder == null && mMultiWiiConnectorService != null) {
+			File dir = new File(Environment.getExternalStorageDirectory(), RECORDING_DIR);
+			FlightRecorder r = new FlightRecorder(dir, RECORDING_SEGMENT_SIZE, RECORDING_MAX_SEGMENTS);
+			try {
+				r.start();
+			} catch (IOException e) {
+				Log.e(TAG, "Cannot start recording", e);
+				Toast.makeText(this, R.string.recording_failed, Toast.LENGTH_SHORT).show();
+				return;
+			}
+			recorder = r;
+			mMultiWiiConnectorService.setRecorder(r);
+			if(D) Log.d(TAG, "recording to " + r.getSessionName());
+		} else if (!on && recorder != null) {
+			if (mMultiWiiConnectorService != null) mMultiWiiConnectorService.setRecorder(null);
+			// The recorder thread closes the file, the UI goes on at once
+			recorder.stop(mRecorderStopped);
+			recorder = null;
+		}
+	}
+
+	/**
+	 * Replay the most recent recording in real time.
+	 */
+	private void replayLatest() {
+		if (mMultiWiiConnectorService == null) return;
+		File dir = new File(Environment.getExternalStorageDirectory(), RECORDING_DIR);
+		String session = ReplaySource.findLatestSession(dir);
+		if (session == null) {
+			Toast.makeText(this, R.string.no_recording, Toast.LENGTH_SHORT).show();
+			return;
+		}
+		if (!mMultiWiiConnectorService.replay(dir, session, 1)) {
+			Toast.makeText(this, R.string.replay_while_connected, Toast.LENGTH_SHORT).show();
+		}
+	}
 }
@@ -0,0 +1,190 @@
+package de.rettig.multiwii;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.os.SystemClock;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * Scrolling chart of several {@link TelemetryHistory} channels. The view is
+ * split into horizontal lanes, and each lane scales itself to the channels
+ * drawn in it.
+ *
+ * Each channel is reduced to its minimum and maximum per pixel column
+ * before drawing, so the drawing cost depends on the width of the view and
+ * not on the number of samples shown. Paths and column arrays are reused,
+ * so drawing allocates nothing. Call {@link #invalidate()} whenever new
+ * samples were appended.
+ */
+public class StripChartView extends View {
+
+	private static final int MAX_CHANNELS = 16;
+	private static final int MAX_LANES = 8;
+
+	private TelemetryHistory mHistory;
+	private long mWindow = 10000;
+
+	private int mChannelCount = 0;
+	private final int[] mChannels = new int[MAX_CHANNELS];
+	private final int[] mChannelLanes = new int[MAX_CHANNELS];
+	private final Paint[] mChannelPaints = new Paint[MAX_CHANNELS];
+	private final Path[] mPaths = new Path[MAX_CHANNELS];
+	private int[][] mMin = new int[MAX_CHANNELS][0];
+	private int[][] mMax = new int[MAX_CHANNELS][0];
+
+	private int mLaneCount = 0;
+	private final String[] mLaneLabels = new String[MAX_LANES];
+
+	private final Paint mGridPaint = new Paint();
+	private final Paint mLabelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+	public StripChartView(Context context) {
+		super(context);
+		init();
+	}
+
+	public StripChartView(Context context, AttributeSet attrs) {
+		super(context, attrs);
+		init();
+	}
+
+	public StripChartView(Context context, AttributeSet attrs, int defStyle) {
+		super(context, attrs, defStyle);
+		init();
+	}
+
+	private void init() {
+		mGridPaint.setColor(Color.DKGRAY);
+		mLabelPaint.setColor(Color.LTGRAY);
+		mLabelPaint.setTextSize(12 * getResources().getDisplayMetrics().scaledDensity);
+	}
+
+	/**
+	 * Set the history to draw from. Its times must be
+	 * {@link SystemClock#uptimeMillis()} values.
+	 */
+	public void setHistory(TelemetryHistory history) {
+		mHistory = history;
+		invalidate();
+	}
+
+	/**
+	 * Set how much time the chart spans.
+	 * @param millis  The time between the left and right edge in ms
+	 */
+	public void setWindow(long millis) {
+		mWindow = millis;
+		invalidate();
+	}
+
+	/**
+	 * Add a lane below the existing ones.
+	 * @param label  Text drawn in the top left corner of the lane
+	 * @return The number of the lane, for {@link #addChannel(int, int, int)}
+	 */
+	public int addLane(String label) {
+		if (mLaneCount == MAX_LANES) throw new IllegalStateException("too many lanes");
+		mLaneLabels[mLaneCount] = label;
+		return mLaneCount++;
+	}
+
+	/**
+	 * Add a channel to a lane.
+	 * @param channel  One of the {@link TelemetryHistory} channel constants
+	 * @param lane  The lane as returned by {@link #addLane(String)}
+	 * @param color  The color of the line
+	 */
+	public void addChannel(int channel, int lane, int color) {
+		if (mChannelCount == MAX_CHANNELS) throw new IllegalStateException("too many channels");
+		int i = mChannelCount++;
+		mChannels[i] = channel;
+		mChannelLanes[i] = lane;
+		Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+		paint.setColor(color);
+		paint.setStyle(Paint.Style.STROKE);
+		mChannelPaints[i] = paint;
+		mPaths[i] = new Path();
+		mMin[i] = new int[getWidth()];
+		mMax[i] = new int[getWidth()];
+		invalidate();
+	}
+
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+		super.onSizeChanged(w, h, oldw, oldh);
+		for (int i = 0; i < mChannelCount; i++) {
+			mMin[i] = new int[w];
+			mMax[i] = new int[w];
+		}
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		if (mLaneCount == 0) return;
+		int width = getWidth();
+		float laneHeight = (float) getHeight() / mLaneCount;
+		long to = SystemClock.uptimeMillis();
+		long from = to - mWindow;
+
+		if (mHistory != null) {
+			for (int i = 0; i < mChannelCount; i++) {
+				mHistory.decimate(mChannels[i], from, to, width, mMin[i], mMax[i]);
+			}
+		}
+
+		for (int lane = 0; lane < mLaneCount; lane++) {
+			float top = lane * laneHeight;
+			if (lane > 0) canvas.drawLine(0, top, width, top, mGridPaint);
+			canvas.drawText(mLaneLabels[lane], 2, top - mLabelPaint.ascent(), mLabelPaint);
+			if (mHistory == null) continue;
+
+			// Scale the lane to the values of all its channels
+			int low = Integer.MAX_VALUE;
+			int high = Integer.MIN_VALUE;
+			for (int i = 0; i < mChannelCount; i++) {
+				if (mChannelLanes[i] != lane) continue;
+				int[] min = mMin[i];
+				int[] max = mMax[i];
+				for (int x = 0; x < width; x++) {
+					if (min[x] > max[x]) continue;
+					if (min[x] < low) low = min[x];
+					if (max[x] > high) high = max[x];
+				}
+			}
+			if (low > high) continue;
+			if (low == high) {
+				low--;
+				high++;
+			}
+			float scale = (laneHeight - 2) / (high - low);
+			float bottom = top + laneHeight - 1;
+
+			for (int i = 0; i < mChannelCount; i++) {
+				if (mChannelLanes[i] != lane) continue;
+				int[] min = mMin[i];
+				int[] max = mMax[i];
+				Path path = mPaths[i];
+				path.rewind();
+				boolean started = false;
+				for (int x = 0; x < width; x++) {
+					if (min[x] > max[x]) continue;
+					float yMax = bottom - (max[x] - low) * scale;
+					float yMin = bottom - (min[x] - low) * scale;
+					if (started) {
+						path.lineTo(x, yMax);
+					} else {
+						path.moveTo(x, yMax);
+						started = true;
+					}
+					// A vertical stroke covers everything between min and max
+					if (yMin != yMax) path.lineTo(x, yMin);
+				}
+				canvas.drawPath(path, mChannelPaints[i]);
+			}
+		}
+	}
+}